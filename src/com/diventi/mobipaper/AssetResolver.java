@@ -0,0 +1,97 @@
+package com.diventi.mobipaper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.res.AssetManager;
+import android.os.Build;
+
+import com.diventi.mobipaper.cache.DiskCache;
+import com.diventi.utils.SHA1;
+
+//Serves the bundled css/js/img/pages to the WebView straight from the apk. Cached pages
+//refer to them relative to the cache folder (ie: css/layout.css); a file the server sent
+//to that same path is newer than the bundled one and wins.
+//Needs WebView.shouldInterceptRequest (API 11); older devices get the assets copied by ResourceManager.
+public class AssetResolver {
+
+  static final String[] ASSET_FOLDERS = new String[] {"css", "js", "img", "pages"};
+  static final String   PAGES_FOLDER  = "pages";
+
+  private static AssetResolver mInstance = new AssetResolver();
+
+  public static AssetResolver getInstance() {
+    return mInstance;
+  }
+
+  public static boolean isSupported() {
+    return Build.VERSION.SDK_INT >= 11;
+  }
+
+  //pages are installed under the sha1 of their name: sha1 -> asset name
+  private Map<String, String> mPages;
+
+  private AssetResolver() {
+  }
+
+  //Content for a file:// url inside the cache folder, null if it is not an asset
+  public InputStream open(String url) {
+    DiskCache cache = DiskCache.getInstance();
+
+    String path = cache.relativePath(url);
+    if(path == null)
+      return null;
+
+    int slash = path.indexOf('/');
+    if(slash == -1 || !isAssetFolder(path.substring(0, slash)))
+      return null;
+
+    try {
+      File override = new File(cache.getFolder(), path);
+      if(override.isFile())
+        return new FileInputStream(override);
+
+      String assetPath = assetPathFor(path.substring(0, slash), path.substring(slash + 1));
+      if(assetPath == null)
+        return null;
+
+      return MobiPaperApp.getContext().getAssets().open(assetPath);
+    } catch (IOException e) {
+      //Not bundled
+      return null;
+    }
+  }
+
+  private String assetPathFor(String folder, String name) throws IOException {
+    if(!PAGES_FOLDER.equals(folder))
+      return folder + "/" + name;
+
+    String page = getPages().get(name);
+    return page != null ? PAGES_FOLDER + "/" + page : null;
+  }
+
+  private synchronized Map<String, String> getPages() throws IOException {
+    if(mPages != null)
+      return mPages;
+
+    AssetManager assets = MobiPaperApp.getContext().getAssets();
+    Map<String, String> pages = new HashMap<String, String>();
+    for(String page : assets.list(PAGES_FOLDER))
+      pages.put(SHA1.sha1(page), page);
+
+    mPages = pages;
+    return mPages;
+  }
+
+  private static boolean isAssetFolder(String folder) {
+    for(String assetFolder : ASSET_FOLDERS) {
+      if(assetFolder.equals(folder))
+        return true;
+    }
+    return false;
+  }
+}
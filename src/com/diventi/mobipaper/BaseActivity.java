@@ -4,7 +4,9 @@ import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -22,18 +24,26 @@ import android.widget.RelativeLayout;
 
 import com.bugsense.trace.BugSenseHandler;
 import com.diventi.eldia.R;
+import com.diventi.mobipaper.cache.CacheKey;
 import com.diventi.mobipaper.cache.DiskCache;
+import com.diventi.utils.HttpTransport;
 import com.diventi.utils.Network;
+import com.diventi.utils.NetworkQuality;
 import com.diventi.utils.NoNetwork;
-import com.diventi.utils.SHA1;
+import com.diventi.utils.Trace;
 import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.BinaryHttpResponseHandler;
+import com.loopj.android.http.AsyncHttpResponseHandler;
+import com.loopj.android.http.FileHttpResponseHandler;
 import com.google.ads.*;
 import com.google.ads.AdRequest.ErrorCode;
 public class BaseActivity extends Activity  {
 
   @SuppressWarnings("unused")
   private static final String TAG = "BaseActivity";
+
+  private final ArrayList<Future<?>> mLookups = new ArrayList<Future<?>>();
+  
+  private static final String[] IMAGE_CONTENT_TYPES = new String[] {"image/jpeg", "image/png"};
   
   protected BaseWebView    mWebView;
   protected ScreenManager  mScreenManager = new ScreenManager();
@@ -122,8 +132,27 @@ public class BaseActivity extends Activity  {
     //activity.setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
   }
   
+  //Cache lookups whose callbacks use this activity. Cancelled in onDestroy (both run on
+  //the main thread, as callbacks are delivered) so none of them runs once it is gone.
+  protected <T> Future<T> track(Future<T> lookup) {
+    Iterator<Future<?>> iter = mLookups.iterator();
+    while(iter.hasNext()) {
+      if(iter.next().isDone())
+        iter.remove();
+    }
+    mLookups.add(lookup);
+    return lookup;
+  }
+  
   @Override
   public void onDestroy() {
+    //Stop this screen's downloads, partial files are discarded
+    HttpTransport.getInstance().getClient().cancelRequests(this, true);
+    
+    for(Future<?> lookup : mLookups)
+      lookup.cancel(false);
+    mLookups.clear();
+    
     if (mAdView != null) {
       mAdView.destroy();
     }
@@ -131,27 +160,42 @@ public class BaseActivity extends Activity  {
   }
   
   protected void loadImages(ArrayList<String> images) {
-    AsyncHttpClient client = new AsyncHttpClient();
+    AsyncHttpClient client = HttpTransport.getInstance().getClient();
+    DiskCache cache = DiskCache.getInstance();
     for(final String img : images) {
-      client.get(img, new BinaryHttpResponseHandler() {
-        public void onSuccess(byte[] binaryData) {
-          DiskCache cache = DiskCache.getInstance();
-          cache.put(SHA1.sha1(img) , binaryData, ScreenManager.IMAGE_PREFIX);
-          
+      final CacheKey key = CacheKey.forUrl(img);
+      client.get(this, img, new FileHttpResponseHandler(cache.getFile(key, ScreenManager.IMAGE_PREFIX), IMAGE_CONTENT_TYPES, AsyncHttpResponseHandler.DIRECT) {
+        protected boolean commit(File temp) {
+          return DiskCache.getInstance().putFile(key, temp, ScreenManager.IMAGE_PREFIX);
+        }
+        
+        //The http cache replays the image entry instead of keeping its own copy
+        public boolean isTargetKept() {
+          return true;
+        }
+        
+        //Only for bodies read off the network
+        protected void onDownloaded(long bytes, long millis) {
+          DiskCache.getInstance().getStats().recordNetworkBytes(bytes);
+          NetworkQuality.getInstance().addThroughputSample(bytes, millis);
+        }
+        
+        //Delivered on the request thread, only the page update goes to the UI thread
+        public void onSuccess(File file) {
           runOnUiThread(new Runnable() {
             @Override
             public void run() {
-              onImageLoaded(img);
+              onImageLoaded(key);
             }
           });
         }
-      });
+      }, AsyncHttpClient.PRIORITY_HIGH);
     }
   }
   
-  private void onImageLoaded(String image) {
+  private void onImageLoaded(CacheKey image) {
     //Log.e(TAG, "onImageLoaded: " + image.localUrl);
-    mWebView.loadUrl( String.format("javascript:update_image('%s')", SHA1.sha1(image)));
+    mWebView.loadUrl( String.format("javascript:update_image('%s')", image.jsId()));
   }
 
   protected void onUrlLoading() {
@@ -251,8 +295,9 @@ public class BaseActivity extends Activity  {
   protected void loadWebView(final String url, boolean useCache, String prefix, boolean fromuser) {
     
     DiskCache cache = DiskCache.getInstance();      
-    File html = new File(cache.getFolder(), SHA1.sha1(url) + "." + prefix );
+    File html = cache.getFile(CacheKey.forUrl(url), prefix);
     String baseUrl = String.format("file://%s", html.getAbsolutePath());
+    Trace.mark("loadWebView");
     mWebView.loadUrl( baseUrl );
     
     try {
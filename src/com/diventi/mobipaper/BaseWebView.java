@@ -6,29 +6,35 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import com.diventi.mobipaper.cache.DiskCache;
+import com.diventi.utils.Trace;
 import com.google.analytics.tracking.android.Fields;
 import com.google.analytics.tracking.android.MapBuilder;
 import com.google.analytics.tracking.android.Tracker;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
 public class BaseWebView extends WebView {
 
     private static final String TAG  = "BaseWebView";
-    private Tracker[] mTrackers;
 
     public class MyWebViewClient extends WebViewClient {
 
     private BaseWebView mBase;
     public MyWebViewClient(BaseWebView base) {
       mBase = base;
-      mTrackers = MobiPaperApp.getTracker();
     }
     
     public void onLoadResource(WebView view, String url) {
@@ -37,9 +43,11 @@ public class BaseWebView extends WebView {
     
     public boolean shouldOverrideUrlLoading(WebView view, String url) 
     {
-        if(mTrackers != null)
+        //Not in the constructor: that runs while the first screen is being inflated
+        Tracker[] trackers = MobiPaperApp.getTracker();
+        if(trackers != null)
         {
-            for(int i=0; i<mTrackers.length; i++) {
+            for(int i=0; i<trackers.length; i++) {
 
                 Map<String,String> ev;
                 if(i == 0) { //somos notrosos
@@ -51,7 +59,7 @@ public class BaseWebView extends WebView {
                     ev = MapBuilder.createEvent("ui_action", "button_press" , toSend, (long) 0).build();
                 }
 
-                mTrackers[i].send(ev);
+                trackers[i].send(ev);
             }
         }
 
@@ -72,6 +80,43 @@ public class BaseWebView extends WebView {
     {
       
     }    
+
+    //Pages live inside cache shard folders, so their relative urls (images, css, js) have to be mapped back.
+    //Bundled css/js/img are not copied to the cache, they are read from the apk.
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, String url)
+    {
+      File file = DiskCache.getInstance().resolve(url);
+      if(file == null) {
+        InputStream asset = AssetResolver.getInstance().open(url);
+        if(asset == null)
+          return null;
+        
+        return new WebResourceResponse(mimeTypeFor(url), null, asset);
+      }
+      
+      try {
+        return new WebResourceResponse(mimeTypeFor(file.getName()), null, new FileInputStream(file));
+      } catch (FileNotFoundException e) {
+        return null;
+      }
+    }
+  }
+  
+  static String mimeTypeFor(String name) {
+    String extension = MimeTypeMap.getFileExtensionFromUrl(name);
+    
+    if(ScreenManager.IMAGE_PREFIX.equals(extension))
+      return "image/jpeg";
+    
+    String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    if(mimeType != null)
+      return mimeType;
+    
+    if("js".equals(extension))
+      return "application/javascript";
+    
+    return "text/html";
   }
   
   public BaseWebView(Context context) {
@@ -192,6 +237,7 @@ public class BaseWebView extends WebView {
     Integer resized = Integer.valueOf(0);
     public void onResize(int doc_width)
     {
+      Trace.mark("js.resize");
       int width = mWebView.getWidth();
       final Double val = 100d * (Double.valueOf(width)/Double.valueOf(doc_width));
       
@@ -212,6 +258,7 @@ public class BaseWebView extends WebView {
 
     public void onLoad()
     {
+      Trace.mark("js.onLoad");
       //Log.e(TAG, "---->ONLOAD<-----(the maku)");
       mWebView.TryToResize();
       
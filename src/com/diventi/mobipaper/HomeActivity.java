@@ -7,12 +7,13 @@ import java.io.IOException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.diventi.mobipaper.cache.CacheKey;
 import com.diventi.mobipaper.cache.DiskCache;
 import com.diventi.mobipaper.menu.MenuWebView;
 import com.diventi.mobipaper.ui.ActionsContentProvider;
 import com.diventi.mobipaper.ui.ActionsContentView;
-import com.diventi.utils.SHA1;
 import com.diventi.utils.TimeDiff;
+import com.diventi.utils.Trace;
 import com.google.ads.Ad;
 
 import android.content.Intent;
@@ -38,6 +39,7 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
     
     private static String      MAIN_URL  = "section://main";
     private static String      MENU_LEFT = "menu://";
+    private static String      COLD_START_TRACE = "coldstart.trace";
   
 	  private ImageButton        mBtnOptions;
 	  private ImageButton        mBtnRefresh;
@@ -62,6 +64,7 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
 	  @Override
     public void onCreate(Bundle savedInstanceState) {
 	    super.onCreate(savedInstanceState);
+	    Trace.mark("home.onCreate");
 	    
 	    setContentView(R.layout.home);
 	    
@@ -80,18 +83,23 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
 	     Thread t = new Thread(){ 
 	        public void run() {
 	            
+	            long start = Trace.now();
 	            try {
                 sleep(500);
               } catch (InterruptedException e1) {
 
               }
+              Trace.span("home.sleep", start);
 	            
 	            htmlResourcesError = null;
               try {
                 
+                start = Trace.now();
                 ResourceManager resourceManager = new ResourceManager();
-                if(!resourceManager.foldersExists())
-                  resourceManager.copyResources();
+                if(!resourceManager.isInstalled())
+                  resourceManager.install();
+                resourceManager.removeCopies();
+                Trace.span("resources.install", start);
 
                 
                 
@@ -99,7 +107,9 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
                 double cacheSize = cache.size();
                 //Log.e(TAG, String.format("cache size pre: %.2f Mb", cacheSize));
                 if(cacheSize > cache.maxSize()) {
+                  start = Trace.now();
                   cache.purge();
+                  Trace.span("cache.purge", start);
                 }
                 //Log.e(TAG, String.format("cache size post: %.2f Mb", cacheSize));
 
@@ -126,7 +136,7 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
 	    onCreateEx(MAIN_URL);
 	  }
 	  
-	  public void onCreateEx(String url) {
+	  public void onCreateEx(final String url) {
 
 	    setupViews();
 	    addAdView();
@@ -135,12 +145,18 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
               showSplashError(false, htmlResourcesError);
               return;
           }
-          if( mScreenManager.sectionExists(url) ) {
-              onUrlLoaded(url, true, null, ScreenManager.SECTION_PREFIX, false);
-              return;
-          }
 
-	    loadSection(url, false, false);
+          track(mScreenManager.sectionExists(url, new DiskCache.Callback<Boolean>() {
+              @Override
+              public void onResult(Boolean exists) {
+                  if( exists != null && exists ) {
+                      onUrlLoaded(url, true, null, ScreenManager.SECTION_PREFIX, false);
+                      return;
+                  }
+
+                  loadSection(url, false, false);
+              }
+          }));
     }
 
 	  @Override
@@ -180,23 +196,33 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
     @Override
     protected void onWebViewLoaded(String url, boolean useCache, boolean fromUser) {
 
+        //First section on screen: the end of a cold start
+        Trace.mark("home.sectionLoaded");
+        Trace.dumpColdStart(new File(getFilesDir(), COLD_START_TRACE), MobiPaperApp.getVersionName());
+
         if(isSplashShowing())
             hideSplash();
         else
             showLoading(false);
 
-        long section_date = mScreenManager.sectionDate(url);
         loadMenu();
 
-        if ( TimeDiff.minutesSince(section_date) > 2*60 )
-        {
-            loadSection(mCurrentSectionUrl, false, false);
-        }
-        else
-        {
-            String js = String.format("javascript:setTimeout(function(){show_actualizado('%s')},1000)", TimeDiff.timeAgo(section_date));
-            mWebView.loadUrl(js);
-        }
+        track(mScreenManager.sectionDate(url, new DiskCache.Callback<Long>() {
+            @Override
+            public void onResult(Long date) {
+                long section_date = date != null ? date : 0;
+
+                if ( TimeDiff.minutesSince(section_date) > 2*60 )
+                {
+                    loadSection(mCurrentSectionUrl, false, false);
+                }
+                else
+                {
+                    String js = String.format("javascript:setTimeout(function(){show_actualizado('%s')},1000)", TimeDiff.timeAgo(section_date));
+                    mWebView.loadUrl(js);
+                }
+            }
+        }));
 
     }
 
@@ -222,8 +248,8 @@ public class HomeActivity extends BaseActivity implements OnClickListener, Secti
     private void loadMenu() {
 
       DiskCache cache = DiskCache.getInstance();
-      String key = SHA1.sha1(MENU_LEFT);
-      File f = new File(cache.getFolder(),key + "." + ScreenManager.MENU_PREFIX);
+      CacheKey key = CacheKey.forUrl(MENU_LEFT);
+      File f = cache.getFile(key, ScreenManager.MENU_PREFIX);
       mMenuWebView.loadUrl("file://" + f.getAbsolutePath());
       
       mBtnOptions.setEnabled(true);
@@ -9,6 +9,9 @@ import org.json.JSONObject;
 
 import com.bugsense.trace.BugSenseHandler;
 import com.diventi.mobipaper.cache.DiskCache;
+import com.diventi.utils.StallWatchdog;
+import com.diventi.utils.Startup;
+import com.diventi.utils.Trace;
 import com.google.analytics.tracking.android.Fields;
 import com.google.analytics.tracking.android.GoogleAnalytics;
 import com.google.analytics.tracking.android.Logger.LogLevel;
@@ -17,6 +20,7 @@ import com.google.analytics.tracking.android.Tracker;
 import android.app.Application;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.util.Log;
 
 public class MobiPaperApp extends Application {
@@ -25,40 +29,92 @@ public class MobiPaperApp extends Application {
   
   public static final String mBugsenseApiKey = "8ca8f59d"; //The-mobi-paper
   public static final double MAX_CACHE_SIZE_MB = 15.0;
+  public static final int    CACHE_BACKEND     = DiskCache.BACKEND_FILE;
+  //Shard folders need WebView.shouldInterceptRequest to resolve relative urls (API 11)
+  public static final int    CACHE_FANOUT      = Build.VERSION.SDK_INT >= 11 ? 2 : 0;
+  //Debug builds: report main thread stalls longer than STALL_THRESHOLD_MS to files/stalls.txt
+  public static final boolean STALL_WATCHDOG     = false;
+  public static final long    STALL_THRESHOLD_MS = 200;
   
   private static Context mContext;  
   private static DiskCache mDiskCache;
-  private static boolean mYoutubeInstalled;
   private static String mAppId;
   private static String mMediaVersion;
-  private static String   mAdMob = "";
-  private static Tracker[] mTrackers = null;
+  private static volatile String mAdMob = "";
+  private static Startup  mStartup;
+  private static Startup.Lazy<Boolean>   mYoutubeInstalled;
+  private static Startup.Lazy<Tracker[]> mTrackers;
 
+  //Only what every screen needs right away runs here; the rest runs in parallel on the
+  //Startup threads or the first time it's used, so the first frame isn't waiting for it.
   @Override
   public void onCreate() {
     super.onCreate();
+    long start = Trace.now();
 
-    //bugsense
-    BugSenseHandler.initAndStartSession(this, MobiPaperApp.mBugsenseApiKey);
+    mStartup = new Startup();
+
+    //First and on this thread: crashes in the rest of startup must be reported too
+    mStartup.run("bugsense", new Runnable() {
+      public void run() {
+        BugSenseHandler.initAndStartSession(MobiPaperApp.this, MobiPaperApp.mBugsenseApiKey);
+      }
+    });
 
     mContext = getApplicationContext();
-    File cacheDir = mContext.getCacheDir();
-    
-    mDiskCache = DiskCache.getInstance();
-    mDiskCache.configure( cacheDir, MAX_CACHE_SIZE_MB );
-    
-    mYoutubeInstalled = isAppInstalled("com.google.android.youtube");
+
+    if(STALL_WATCHDOG)
+      StallWatchdog.start(STALL_THRESHOLD_MS, new File(getFilesDir(), "stalls.txt"));
+
+    mStartup.run("cache", new Runnable() {
+      public void run() {
+        mDiskCache = DiskCache.getInstance();
+        mDiskCache.configure( mContext.getCacheDir(), MAX_CACHE_SIZE_MB, CACHE_BACKEND, CACHE_FANOUT );
+      }
+    });
     
     String tmp = getApplicationInfo().packageName;
     if(tmp.endsWith("2"))
       tmp = tmp.substring(0,tmp.length()-1);
     
     mAppId = tmp;
-    mMediaVersion = mDiskCache.getMediaVersion();
-    
-    loadConfigJson();
+
+    mYoutubeInstalled = new Startup.Lazy<Boolean>(mStartup, "youtube") {
+      protected Boolean create() {
+        return isAppInstalled("com.google.android.youtube");
+      }
+    };
+
+    mTrackers = new Startup.Lazy<Tracker[]>(mStartup, "analytics") {
+      protected Tracker[] create() {
+        GoogleAnalytics analytics = GoogleAnalytics.getInstance(mContext);
+        analytics.getLogger().setLogLevel(LogLevel.VERBOSE);
+        return new Tracker[] { analytics.getTracker("UA-32663760-6") };
+      }
+    };
     
-    GoogleAnalytics.getInstance(mContext).getLogger().setLogLevel(LogLevel.VERBOSE);
+    mStartup.background("media_version", new Runnable() {
+      public void run() {
+        mMediaVersion = mDiskCache.getMediaVersion();
+      }
+    });
+
+    mStartup.background("config", new Runnable() {
+      public void run() {
+        loadConfigJson();
+      }
+    });
+
+    //Warmed up off the main thread before the first tap needs them
+    mStartup.background("analytics.warm", new Runnable() {
+      public void run() {
+        mTrackers.get();
+      }
+    });
+
+    mStartup.finish();
+
+    Trace.span("app.onCreate", start);
     
 //    UncaughtExceptionHandler myHandler = new ExceptionReporter(
 //        GoogleAnalytics.getInstance(this).getDefaultTracker(), // Tracker, may return null if not yet initialized.
@@ -70,7 +126,11 @@ public class MobiPaperApp extends Application {
   }
 
   public static Tracker[] getTracker() {
-      return mTrackers;
+      return mTrackers.get();
+  }
+
+  public static Startup getStartup() {
+    return mStartup;
   }
 
   public static void loadConfigJson() {
@@ -97,9 +157,6 @@ public class MobiPaperApp extends Application {
 //        }
 //      }
       
-      mTrackers = new Tracker[] { GoogleAnalytics.getInstance(mContext).getTracker("UA-32663760-6") };
-      
-      
     } catch (JSONException e) {
       
     }
@@ -107,6 +164,7 @@ public class MobiPaperApp extends Application {
   }
   
   public static String getAdmob() {
+    mStartup.await("config");
     return mAdMob;
   }
 
@@ -119,7 +177,7 @@ public class MobiPaperApp extends Application {
   }
 
   public static boolean isYoutubeInstalled() {
-    return mYoutubeInstalled;
+    return mYoutubeInstalled.get();
   }
   
   public static String getAppId() {
@@ -127,11 +185,20 @@ public class MobiPaperApp extends Application {
   }
   
   public static String getMediaVersion() {
+    mStartup.await("media_version");
     return mMediaVersion;
   }
   
-  private boolean isAppInstalled(String uri) {
-    PackageManager pm = getPackageManager();
+  public static String getVersionName() {
+    try {
+      return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).versionName;
+    } catch (PackageManager.NameNotFoundException e) {
+      return "?";
+    }
+  }
+  
+  private static boolean isAppInstalled(String uri) {
+    PackageManager pm = mContext.getPackageManager();
     boolean installed = false;
     try {
        pm.getPackageInfo(uri, PackageManager.GET_ACTIVITIES);
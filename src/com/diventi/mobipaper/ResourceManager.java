@@ -1,69 +1,328 @@
 package com.diventi.mobipaper;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
+import android.util.Log;
 
 import com.diventi.mobipaper.cache.DiskCache;
 import com.diventi.utils.SHA1;
 
+//Installs the html assets (css, js, img, pages) into the cache folder on devices where
+//AssetResolver can't serve them from the apk (API < 11).
+//A manifest of what was installed (path and sha1 of each file) is kept next to them,
+//stamped with the apk it came from. While the stamp matches nothing is done; after an
+//update only new or changed assets are written and removed ones are deleted.
 public class ResourceManager {
-  
-  private static final String MARK_FILE = ".htmlfolderscopied";
 
-  public boolean foldersExists() {
+  private static final String TAG = "ResourceManager";
+
+  private static final String MANIFEST_FILE = ".assetmanifest";
+  private static final String OLD_MARK_FILE = ".htmlfolderscopied";
+
+  private static final String[] ASSET_FOLDERS = AssetResolver.ASSET_FOLDERS;
+  private static final String   PAGES_FOLDER  = AssetResolver.PAGES_FOLDER;
+
+  private static final int INSTALL_THREADS = 3;
+  private static final int BUFFER_SIZE     = 8*1024;
+
+  public boolean isInstalled() {
+    if(AssetResolver.isSupported())
+      return true;
+
+    String stamp = readManifest(new HashMap<String, String>());
+    return stamp != null && stamp.equals(apkStamp());
+  }
+
+  public void install() throws IOException {
     File folder = DiskCache.getInstance().getFolder();
-    
-    File fileMark = new File(folder, MARK_FILE);
-    return fileMark.exists();
+    AssetManager assets = MobiPaperApp.getContext().getAssets();
+
+    //What is on disk now, dest path -> sha1
+    Map<String, String> installed = new HashMap<String, String>();
+    readManifest(installed);
+
+    //Removed first: if we die half way the next run starts over
+    File manifest = new File(folder, MANIFEST_FILE);
+    manifest.delete();
+    new File(folder, OLD_MARK_FILE).delete();
+
+    List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+    ExecutorService pool = Executors.newFixedThreadPool(INSTALL_THREADS);
+    try {
+      for(String assetFolder : ASSET_FOLDERS) {
+
+        File destFolder = new File(folder, assetFolder);
+        if(!destFolder.exists() && !destFolder.mkdirs() )
+          throw new IOException("unable to create folder");
+
+        for( String fileName : assets.list(assetFolder) ) {
+
+          String destName = fileName;
+          if(PAGES_FOLDER.equals(assetFolder))
+            destName = SHA1.sha1(fileName);
+
+          String destPath = assetFolder + "/" + destName;
+          results.add(pool.submit(new InstallTask(assets, assetFolder + "/" + fileName,
+              new File(folder, destPath), destPath, installed.get(destPath))));
+        }
+      }
+
+      //dest path -> sha1 of what is there now
+      Map<String, String> current = new HashMap<String, String>();
+      for(Future<String[]> result : results) {
+        String[] entry = getResult(result);
+        current.put(entry[0], entry[1]);
+      }
+
+      //Assets no longer shipped
+      for(String destPath : installed.keySet()) {
+        if(!current.containsKey(destPath))
+          new File(folder, destPath).delete();
+      }
+
+      writeManifest(manifest, apkStamp(), current);
+
+    } finally {
+      pool.shutdownNow();
+    }
   }
-  
-  public void copyResources() throws IOException {
-    
-    DiskCache cache = DiskCache.getInstance();
-    File folder = cache.getFolder();
-    
-    //Remove mark
-    File fileMark = new File(folder, MARK_FILE);
-    fileMark.delete();
-    
-    //Copy folders
-    for(String assetFolder : new String[] {"css", "js", "img", "pages"}) {
-      copyAssetFolderTo(assetFolder, folder);
+
+  //Copies one asset unless the installed file already has its content.
+  //Returns {dest path, sha1}.
+  private static class InstallTask implements Callable<String[]> {
+
+    private final AssetManager mAssets;
+    private final String       mAssetPath;
+    private final File         mDest;
+    private final String       mDestPath;
+    private final String       mInstalledHash;
+
+    InstallTask(AssetManager assets, String assetPath, File dest, String destPath, String installedHash) {
+      mAssets        = assets;
+      mAssetPath     = assetPath;
+      mDest          = dest;
+      mDestPath      = destPath;
+      mInstalledHash = installedHash;
     }
 
-    //Set mark
-    FileUtils.writeByteArrayToFile(fileMark, new byte[] {100});
+    public String[] call() throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+
+      //Reading the apk is much cheaper than writing, so hash first when there is something to compare to
+      if(mInstalledHash != null && mDest.exists()) {
+        String hash = copy(buffer, null);
+        if(hash.length() > 0 && hash.equals(mInstalledHash))
+          return new String[] {mDestPath, hash};
+      }
+
+      File temp = new File(mDest.getPath() + ".part");
+      try {
+        OutputStream os = new FileOutputStream(temp);
+        String hash;
+        try {
+          hash = copy(buffer, os);
+        } finally {
+          os.close();
+        }
+
+        if(!temp.renameTo(mDest)) {
+          mDest.delete();
+          if(!temp.renameTo(mDest))
+            throw new IOException("unable to install " + mDestPath);
+        }
+        return new String[] {mDestPath, hash};
+      } finally {
+        temp.delete();
+      }
+    }
+
+    //Streams the asset into os (if not null) and returns its sha1
+    private String copy(byte[] buffer, OutputStream os) throws IOException {
+      MessageDigest digest = SHA1.getDigest();
+      InputStream is = mAssets.open(mAssetPath);
+      try {
+        int count;
+        while((count = is.read(buffer)) != -1) {
+          if(digest != null)
+            digest.update(buffer, 0, count);
+          if(os != null)
+            os.write(buffer, 0, count);
+        }
+      } finally {
+        IOUtils.closeQuietly(is);
+      }
+
+      //Without sha1 the file is always rewritten
+      return digest != null ? SHA1.encodeHex(digest.digest()) : "";
+    }
   }
-  
-  private void copyAssetFolderTo(String assetFolder, File to) throws IOException {
-    
-    File destFolder = new File(to, assetFolder);
-    
-    if(!destFolder.exists() && !destFolder.mkdirs() )
-      throw new IOException("unable to create folder");
-    
-    AssetManager assets = MobiPaperApp.getContext().getAssets();
-    
-    for( String fileName : assets.list(assetFolder) ) {
-      
-      InputStream is = assets.open(assetFolder + "/" + fileName);
-      
-      String destName = fileName;
-      if(assetFolder == "pages")
-        destName = SHA1.sha1(fileName);
-      
-      FileUtils.writeByteArrayToFile(new File(destFolder, destName), 
-          IOUtils.toByteArray(is));
-
-      is.close();
+
+  //Copies left by earlier versions (or before an update to API 11+) only take cache space now,
+  //and would shadow the assets of this apk. Runs in the background. Only what we installed is
+  //deleted: a file whose content is still the one in the manifest (or, for installs older than
+  //the manifest, that wasn't written after the mark) is ours; anything else the server sent later.
+  public void removeCopies() {
+    if(!AssetResolver.isSupported())
+      return;
+
+    final File folder = DiskCache.getInstance().getFolder();
+    final File manifest = new File(folder, MANIFEST_FILE);
+    final File oldMark  = new File(folder, OLD_MARK_FILE);
+    if(!manifest.exists() && !oldMark.exists())
+      return;
+
+    Thread t = new Thread("ResourceManager-cleanup") {
+      public void run() {
+        Map<String, String> installed = new HashMap<String, String>();
+        boolean hasManifest = readManifest(installed) != null;
+        long installedAt = hasManifest ? manifest.lastModified() : oldMark.lastModified();
+
+        if(!hasManifest) {
+          //The old install copied every bundled file
+          try {
+            AssetManager assets = MobiPaperApp.getContext().getAssets();
+            for(String assetFolder : ASSET_FOLDERS) {
+              for( String fileName : assets.list(assetFolder) ) {
+                String destName = fileName;
+                if(PAGES_FOLDER.equals(assetFolder))
+                  destName = SHA1.sha1(fileName);
+                installed.put(assetFolder + "/" + destName, "");
+              }
+            }
+          } catch (IOException e) {
+            Log.w(TAG, "unable to list assets", e);
+            return;
+          }
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for(Map.Entry<String, String> entry : installed.entrySet()) {
+          File dest = new File(folder, entry.getKey());
+          if(!dest.isFile())
+            continue;
+
+          try {
+            boolean ours;
+            if(entry.getValue().length() > 0)
+              ours = entry.getValue().equals(hash(new FileInputStream(dest), buffer));
+            else
+              ours = dest.lastModified() <= installedAt;
+
+            if(ours)
+              dest.delete();
+          } catch (IOException e) {
+            Log.w(TAG, "unable to check " + dest, e);
+          }
+        }
+
+        //Only go away if nothing is left in them
+        for(String assetFolder : ASSET_FOLDERS)
+          new File(folder, assetFolder).delete();
+
+        manifest.delete();
+        oldMark.delete();
+      }
+    };
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  private static String hash(InputStream is, byte[] buffer) throws IOException {
+    MessageDigest digest = SHA1.getDigest();
+    try {
+      int count;
+      while((count = is.read(buffer)) != -1) {
+        if(digest != null)
+          digest.update(buffer, 0, count);
+      }
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    return digest != null ? SHA1.encodeHex(digest.digest()) : "";
+  }
+
+  private static String[] getResult(Future<String[]> result) throws IOException {
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException)e.getCause();
+      throw new IOException(String.valueOf(e.getCause()));
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted");
+    }
+  }
+
+  //Manifest: first line the apk stamp, then one "dest path<TAB>sha1" line per file.
+  //Fills entries and returns the stamp, null if there is no manifest.
+  private static String readManifest(Map<String, String> entries) {
+    File manifest = new File(DiskCache.getInstance().getFolder(), MANIFEST_FILE);
+    if(!manifest.exists())
+      return null;
+
+    try {
+      List<String> lines = FileUtils.readLines(manifest, "utf-8");
+      if(lines.isEmpty())
+        return null;
+
+      for(String line : lines.subList(1, lines.size())) {
+        int tab = line.indexOf('\t');
+        if(tab != -1)
+          entries.put(line.substring(0, tab), line.substring(tab+1));
+      }
+      return lines.get(0);
+    } catch (IOException e) {
+      return null;
     }
+  }
+
+  private static void writeManifest(File manifest, String stamp, Map<String, String> entries) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    lines.add(stamp);
+    for(Map.Entry<String, String> entry : entries.entrySet())
+      lines.add(entry.getKey() + "\t" + entry.getValue());
 
+    File temp = new File(manifest.getPath() + ".part");
+    FileUtils.writeLines(temp, "utf-8", lines, "\n");
+    if(!temp.renameTo(manifest)) {
+      temp.delete();
+      throw new IOException("unable to write asset manifest");
+    }
   }
-  
+
+  //Changes whenever a new apk is installed, even with the same version code
+  private static String apkStamp() {
+    Context context = MobiPaperApp.getContext();
+    try {
+      PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+      long apkTime = new File(info.applicationInfo.sourceDir).lastModified();
+      return info.versionCode + ":" + apkTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      Log.w(TAG, "unable to read package info", e);
+      return "";
+    }
+  }
+
 }
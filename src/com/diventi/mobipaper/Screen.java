@@ -0,0 +1,78 @@
+package com.diventi.mobipaper;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+
+import com.diventi.mobipaper.cache.CacheKey;
+import com.diventi.mobipaper.cache.DiskCache;
+
+//Handle to a cached screen. The WebView loads screens by path, so the html is only
+//read and decoded if someone calls content().
+public class Screen {
+
+  public static final int SOURCE_CACHE   = 0;
+  public static final int SOURCE_NETWORK = 1;
+
+  private final CacheKey mKey;
+  private final String   mPrefix;
+  private final int      mSource;
+
+  private File   mFile;
+  private long   mCreatedAt = -1;
+  private String mContent;
+
+  Screen(CacheKey key, String prefix, int source) {
+    mKey    = key;
+    mPrefix = prefix;
+    mSource = source;
+  }
+
+  public CacheKey getKey() {
+    return mKey;
+  }
+
+  public String getPrefix() {
+    return mPrefix;
+  }
+
+  public int getSource() {
+    return mSource;
+  }
+
+  public boolean isFromCache() {
+    return mSource == SOURCE_CACHE;
+  }
+
+  public File getFile() {
+    if(mFile == null)
+      mFile = DiskCache.getInstance().getFile(mKey, mPrefix);
+    return mFile;
+  }
+
+  public long size() {
+    return getFile().length();
+  }
+
+  public long createdAt() {
+    if(mCreatedAt == -1)
+      mCreatedAt = DiskCache.getInstance().createdAt(mKey, mPrefix);
+    return mCreatedAt;
+  }
+
+  //Reads and decodes the html, null if the entry is gone
+  public String content() {
+    if(mContent != null)
+      return mContent;
+
+    byte[] html = DiskCache.getInstance().get(mKey, mPrefix);
+    if(html == null)
+      return null;
+
+    try {
+      mContent = new String(html, "utf-8");
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+    return mContent;
+  }
+}
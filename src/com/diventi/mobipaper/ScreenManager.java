@@ -1,32 +1,67 @@
 package com.diventi.mobipaper;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StreamCorruptedException;
-import java.net.HttpURLConnection;
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.params.HttpConnectionParams;
 import org.xml.sax.SAXException;
 
 import android.net.Uri;
+import com.diventi.mobipaper.cache.CacheKey;
 import com.diventi.mobipaper.cache.DiskCache;
+import com.diventi.mobipaper.cache.DiskHttpCacheStorage;
+import com.diventi.utils.AdaptiveTimeouts;
+import com.diventi.utils.HttpTransport;
 import com.diventi.utils.Network;
+import com.diventi.utils.NetworkQuality;
 import com.diventi.utils.NoNetwork;
 import com.diventi.utils.SHA1;
+import com.diventi.utils.TimingSocketFactory;
+import com.diventi.utils.Trace;
+import com.loopj.android.http.CircuitBreaker;
+import com.loopj.android.http.CircuitOpenException;
 
 public class ScreenManager {
 
   @SuppressWarnings("unused")
   private static final String TAG = "ScreenManager"; 
+
+  //Send a second /ws/screen request when the first one is slower than usual (see fetch)
+  public static final boolean HEDGE_REQUESTS = true;
+
+  private static final ExecutorService mFetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "ScreenManager-fetch");
+      t.setDaemon(true);
+      return t;
+    }
+  });
   
   private Boolean m_isBig = false;
   public Boolean IsBig() { return m_isBig; }
@@ -100,31 +135,31 @@ public class ScreenManager {
         return url.substring(inx0, inx1);
     }
 
-  public String getArticle(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getArticle(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, true, ScreenManager.ARTICLE_PREFIX);
   }
 
-  public String getSection(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getSection(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, true, ScreenManager.SECTION_PREFIX);
   }
 
-  public String getMenu(boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getMenu(boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen("menu://left", useCache, false, ScreenManager.MENU_PREFIX);
   }
 
-  public String getClasifieds(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getClasifieds(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, false, ScreenManager.CLASSIFIED_PREFIX);
   }
 
-  public String getFunebres(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getFunebres(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, false, ScreenManager.FUNEBRES_PREFIX);
   }
 
-  public String getCartelera(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getCartelera(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, false, ScreenManager.CARTELERA_PREFIX);
   }
 
-  public String getFarmacias(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getFarmacias(String url, boolean useCache) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
     return getScreen(url, useCache, false, ScreenManager.FARMACIAS_PREFIX);
   }
 
@@ -132,92 +167,274 @@ public class ScreenManager {
   public long sectionDate(String url) {
 
     DiskCache cache = DiskCache.getInstance();
-    String key = SHA1.sha1(url);
+    CacheKey key = CacheKey.forUrl(url);
     
     return cache.createdAt(key, ScreenManager.SECTION_PREFIX);
   }
   
-  public String getScreen(String url, boolean useCache, boolean processImages, String prefix) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
-    String tmp = getScreenPlain(url, useCache, processImages, prefix);
-    return tmp;
+  public Future<Long> sectionDate(String url, DiskCache.Callback<Long> callback) {
+
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+    
+    return cache.createdAt(key, ScreenManager.SECTION_PREFIX, callback);
   }
   
-  public String getScreenPlain(String url, boolean useCache, boolean processImages, String prefix) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
+  public Screen getScreen(String url, boolean useCache, boolean processImages, String prefix) throws IOException, SAXException, ParserConfigurationException, URISyntaxException, NoNetwork {
   
     DiskCache cache = DiskCache.getInstance();
-    String key = SHA1.sha1(url);
+    CacheKey key = CacheKey.forUrl(url);
         
-    if( useCache == true )
-    {
-      byte[] html = cache.get(key, prefix);
-      if(html != null)
-        return new String(html,"utf-8");
+    if( useCache == true && cache.exists(key, prefix) ) {
+      Screen screen = new Screen(key, prefix, Screen.SOURCE_CACHE);
+      cache.getStats().recordCacheBytes(screen.size());
+      return screen;
     }
 
     if( !Network.hasConnection() ) {
       throw new NoNetwork();
     }
+
+    //While the server is down whatever we have (however old) beats waiting for a timeout.
+    //With useCache the lookup above already missed, don't count it twice.
+    CircuitBreaker breaker = CircuitBreaker.forHost(HttpTransport.SERVER_HOST);
+    if( !breaker.allowRequest() ) {
+      Trace.mark("ws.screen circuit open");
+      if( !useCache && cache.exists(key, prefix) ) {
+        Screen screen = new Screen(key, prefix, Screen.SOURCE_CACHE);
+        cache.getStats().recordCacheBytes(screen.size());
+        return screen;
+      }
+      throw new CircuitOpenException(breaker.getHost());
+    }
       
-    downloadHtml(url, key, prefix);
-    byte[] html = cache.get(key, prefix);
-    return new String(html,"utf-8");
+    long start = Trace.now();
+    try {
+      downloadHtml(url, key, prefix);
+    } finally {
+      Trace.span("ws.screen " + prefix, start);
+    }
+    if( !cache.exists(key, prefix) )
+      throw new IOException("invalid response");
+    
+    return new Screen(key, prefix, Screen.SOURCE_NETWORK);
   }
 
-  void downloadHtml(String iurl, String key, String prefix) throws IOException
+  void downloadHtml(String iurl, CacheKey key, String prefix) throws IOException
   {
 
-    String urlParameters = String.format("url=%s&appid=%s&size=%s&ptls=%s&net=%s&ver=%s", 
+    ScreenMetrics.Sample sample = new ScreenMetrics.Sample();
+    sample.prefix = prefix;
+    sample.size   = IsBig() ? "big" : "small";
+    sample.ptls   = IsLandscape() ? "ls" : "pt";
+    sample.net    = Network.connectionType();
+    sample.quality = Network.quality();
+
+    String urlParameters = String.format("url=%s&appid=%s&size=%s&ptls=%s&net=%s&nq=%s&ver=%s", 
                 iurl, 
                 MobiPaperApp.getAppId(), 
-                IsBig() ? "big" : "small",
-                IsLandscape() ? "ls" : "pt",
-                Network.connectionType(),
+                sample.size,
+                sample.ptls,
+                sample.net,
+                sample.quality,
                 MobiPaperApp.getMediaVersion()
     );
 
-    URL url = new URL("http://www.diariosmoviles.com.ar/ws/screen");
-    
-    //URL url = new URL("http://10.0.0.3:8080/ws/screen");
-    
-    HttpURLConnection con = (HttpURLConnection)url.openConnection();
+    CircuitBreaker breaker = CircuitBreaker.forHost(HttpTransport.SERVER_HOST);
+
+    long start = System.nanoTime();
+    Attempt attempt;
+    try {
+      attempt = fetch(urlParameters, sample.net, sample.quality);
+    } catch (IOException e) {
+      //Leaving the screen or losing the connection isn't the server's fault
+      if( !Thread.currentThread().isInterrupted() && Network.hasConnection() )
+        breaker.recordFailure();
+      throw e;
+    }
+    HttpPost post         = attempt.post;
+    HttpResponse response = attempt.response;
+    sample.firstByteMs = (System.nanoTime() - start) / 1000000;
+    sample.connectMs   = attempt.connectMs;
     
-    con.setDoOutput(true);
-    con.setDoInput(true);
-    con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded"); 
-    con.setRequestProperty("charset", "utf-8");
-    con.setRequestProperty("Content-Length", "" + Integer.toString(urlParameters.getBytes().length));
-    con.setRequestMethod("POST");
+    StatusLine status = response.getStatusLine();
+    if( CircuitBreaker.isFailure(status.getStatusCode()) )
+      breaker.recordFailure();
+    else
+      breaker.recordSuccess();
+    HttpEntity body   = response.getEntity();
+    if(status.getStatusCode() >= 300 || body == null) {
+      post.abort();
+      throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+    }
+
+    CountingInputStream counter = new CountingInputStream(body.getContent());
+    ZipInputStream zis = new ZipInputStream(counter);
+    boolean completed = false;
     
-    DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-    wr.writeBytes(urlParameters);
-    wr.flush();
+    try {
+      long unzipStart = System.nanoTime();
+      long writeNanos = 0;
+
+      DiskCache cache = DiskCache.getInstance();
+      ZipEntry entry = zis.getNextEntry();
+      while (entry != null)
+      {
+        String name = entry.getName();
+        byte[] data = IOUtils.toByteArray(zis);
+
+        long writeStart = System.nanoTime();
+        cache.put(name, data);
+        writeNanos += System.nanoTime() - writeStart;
+        sample.entries++;
+        
+        if(name.equals("config.json")) {
+          MobiPaperApp.loadConfigJson();
+        }
+        
+        entry = zis.getNextEntry();
+      }
+      completed = true;
+
+      //Unzip includes reading the body off the network
+      long end = System.nanoTime();
+      sample.unzipMs      = (end - unzipStart - writeNanos) / 1000000;
+      sample.cacheWriteMs = writeNanos / 1000000;
+      sample.totalMs      = (end - start) / 1000000;
+      sample.bytes        = counter.getByteCount();
+      ScreenMetrics.getInstance().record(sample);
+
+      NetworkQuality quality = NetworkQuality.getInstance();
+      quality.addRttSample(sample.connectMs);
+      quality.addThroughputSample(sample.bytes, sample.totalMs - sample.firstByteMs - sample.cacheWriteMs);
+    } finally {
+      //What came off the wire, finished or not
+      DiskCache.getInstance().getStats().recordNetworkBytes(counter.getByteCount());
+
+      //Dropping a half read connection is cheaper than draining it
+      if(!completed)
+        post.abort();
+      IOUtils.closeQuietly(zis);
+    }
+  }
+  
+  //One request to /ws/screen: the response headers and how long they took
+  private static class Attempt implements Callable<Attempt> {
+    final HttpPost post;
+    HttpResponse response;
+    long connectMs;
+    volatile long startedAt;
+    volatile long firstByteMs = -1;
+    volatile boolean failed;
+
+    Attempt(String body, int connectTimeout, int readTimeout) throws UnsupportedEncodingException {
+      post = new HttpPost("http://" + HttpTransport.SERVER_HOST + "/ws/screen");
+
+      //post = new HttpPost("http://10.0.0.3:8080/ws/screen");
+
+      StringEntity params = new StringEntity(body, "utf-8");
+      params.setContentType("application/x-www-form-urlencoded");
+      post.setEntity(params);
+
+      HttpConnectionParams.setConnectionTimeout(post.getParams(), connectTimeout);
+      HttpConnectionParams.setSoTimeout(post.getParams(), readTimeout);
+    }
 
-    InputStream is = con.getInputStream();
+    public Attempt call() throws IOException {
+      startedAt = System.nanoTime();
+      TimingSocketFactory.takeConnectTime();
+      try {
+        response = HttpTransport.getInstance().execute(post);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+      connectMs   = TimingSocketFactory.takeConnectTime();
+      firstByteMs = (System.nanoTime() - startedAt) / 1000000;
+      return this;
+    }
 
-    ZipInputStream zis = new ZipInputStream(is);
-    
+    //Sent and neither answered nor failed yet
+    boolean isWaiting() {
+      return startedAt != 0 && !failed && firstByteMs < 0;
+    }
 
-    DiskCache cache = DiskCache.getInstance();
-    ZipEntry entry = zis.getNextEntry();
-    while (entry != null)
-    {
-      String name = entry.getName();
-      cache.put(name, IOUtils.toByteArray(zis));
-      
-      if(name == "config.json") {
-        MobiPaperApp.loadConfigJson();
+    //How long it has been waiting (a lower bound of its latency if it never answers)
+    long elapsedMs() {
+      return (System.nanoTime() - startedAt) / 1000000;
+    }
+  }
+
+  //Sends the request with timeouts learned for this network class. If it hasn't answered
+  //by the class' p95 a second, identical one is sent (the screen fetch has no side effects)
+  //and the first to answer wins; the other one is aborted.
+  private Attempt fetch(String body, String net, String quality) throws IOException {
+    AdaptiveTimeouts timeouts = AdaptiveTimeouts.getInstance();
+    int connectTimeout = timeouts.connectTimeout(net, quality);
+    int readTimeout    = timeouts.readTimeout(net, quality);
+    long hedgeDelay    = HEDGE_REQUESTS ? timeouts.hedgeDelay(net, quality) : -1;
+
+    Attempt first = new Attempt(body, connectTimeout, readTimeout);
+    if(hedgeDelay < 0) {
+      first.call();
+      timeouts.record(net, quality, first.connectMs, first.firstByteMs);
+      return first;
+    }
+
+    CompletionService<Attempt> attempts = new ExecutorCompletionService<Attempt>(mFetchExecutor);
+    ArrayList<Attempt> started = new ArrayList<Attempt>();
+    attempts.submit(first);
+    started.add(first);
+
+    Attempt winner = null;
+    IOException error = null;
+    try {
+      Future<Attempt> done = attempts.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+      if(done == null) {
+        Trace.mark("ws.screen hedged");
+        Attempt second = new Attempt(body, connectTimeout, readTimeout);
+        attempts.submit(second);
+        started.add(second);
+      }
+
+      for(int pending = started.size(); winner == null && pending > 0; pending--) {
+        if(done == null)
+          done = attempts.take();
+
+        try {
+          winner = done.get();
+        } catch (ExecutionException e) {
+          if(error == null)
+            error = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(String.valueOf(e.getCause()));
+        }
+        done = null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      error = new InterruptedIOException("interrupted");
+    } finally {
+      for(Attempt attempt : started) {
+        if(attempt == winner)
+          continue;
+
+        //Its slowness is what the timeouts have to learn too; a quick failure says nothing about it
+        if(winner != null && attempt.isWaiting())
+          timeouts.record(net, quality, -1, attempt.elapsedMs());
+        attempt.post.abort();
       }
-      
-      entry = zis.getNextEntry();
     }
-    
-    return;
+
+    if(winner == null)
+      throw error;
+
+    timeouts.record(net, quality, winner.connectMs, winner.firstByteMs);
+    return winner;
   }
-  
+
   public ArrayList<String> getPendingImages(String url) throws StreamCorruptedException, IOException, ClassNotFoundException {
     
     DiskCache cache = DiskCache.getInstance();
-    String key = SHA1.sha1(url);
+    CacheKey key = CacheKey.forUrl(url);
     
     byte[] mis = cache.get(key, ScreenManager.IMAGE_GROUP_PREFIX);
 
@@ -227,10 +444,13 @@ public class ScreenManager {
     for(String i : tmp.split(",") )
       images.add(i);
     
+    //Stale images (or ones without http headers) are requested again, the http cache
+    //revalidates them and a 304 leaves the stored file as it is
+    DiskHttpCacheStorage http = new DiskHttpCacheStorage();
     Iterator<String> iter = images.iterator();
     while(iter.hasNext()) {
       String image = iter.next();
-      if(cache.exists(image, ScreenManager.IMAGE_PREFIX)) {
+      if(cache.exists(CacheKey.forUrl(image), ScreenManager.IMAGE_PREFIX) && http.isFresh(image)) {
         iter.remove();
       }
     }
@@ -245,10 +465,18 @@ public class ScreenManager {
     return screenExists(url, ScreenManager.SECTION_PREFIX);
   }
   
+  public Future<Boolean> sectionExists(String url, DiskCache.Callback<Boolean> callback) {
+    return screenExists(url, ScreenManager.SECTION_PREFIX, callback);
+  }
+  
   public boolean articleExists(String url) {
     return screenExists(url, ScreenManager.ARTICLE_PREFIX);
   }
   
+  public Future<Boolean> articleExists(String url, DiskCache.Callback<Boolean> callback) {
+    return screenExists(url, ScreenManager.ARTICLE_PREFIX, callback);
+  }
+  
   public boolean menuExists() {
     return screenExists("menu://", ScreenManager.MENU_PREFIX);
   }
@@ -257,6 +485,10 @@ public class ScreenManager {
     return screenExists(url, ScreenManager.CLASSIFIED_PREFIX);
   }
 
+  public Future<Boolean> classifiedExists(String url, DiskCache.Callback<Boolean> callback) {
+    return screenExists(url, ScreenManager.CLASSIFIED_PREFIX, callback);
+  }
+
   public boolean funebresExists(String url) {
     return screenExists(url, ScreenManager.FUNEBRES_PREFIX);
   }
@@ -272,11 +504,18 @@ public class ScreenManager {
   
   public boolean screenExists(String url, String prefix) {
     DiskCache cache = DiskCache.getInstance();
-    String key = SHA1.sha1(url);
+    CacheKey key = CacheKey.forUrl(url);
 
     return cache.exists(key, prefix);
   }
   
+  public Future<Boolean> screenExists(String url, String prefix, DiskCache.Callback<Boolean> callback) {
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+
+    return cache.exists(key, prefix, callback);
+  }
+  
   
 //  private String getStyleSheetBig(String url) throws MalformedURLException {
 //    
@@ -472,9 +711,16 @@ public class ScreenManager {
 
   public long classifiedDate(String url) {
     DiskCache cache = DiskCache.getInstance();
-    String key = SHA1.sha1(url);
+    CacheKey key = CacheKey.forUrl(url);
     
     return cache.createdAt(key, ScreenManager.CLASSIFIED_PREFIX);
   }
+
+  public Future<Long> classifiedDate(String url, DiskCache.Callback<Long> callback) {
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+    
+    return cache.createdAt(key, ScreenManager.CLASSIFIED_PREFIX, callback);
+  }
   
 }
@@ -0,0 +1,119 @@
+package com.diventi.mobipaper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.diventi.utils.Histogram;
+
+//Timings and sizes of the /ws/screen downloads, aggregated in memory per
+//prefix/connection type:quality/size/orientation so a slow load can be told apart as network
+//(connect, first byte), server (first byte) or device (unzip, cache writes).
+public class ScreenMetrics {
+
+  private static final String TAG = "ScreenMetrics";
+
+  public static final String CONNECT_MS     = "connect_ms";
+  public static final String FIRST_BYTE_MS  = "first_byte_ms";
+  public static final String BYTES          = "bytes";
+  public static final String ENTRIES        = "entries";
+  public static final String UNZIP_MS       = "unzip_ms";
+  public static final String CACHE_WRITE_MS = "cache_write_ms";
+  public static final String TOTAL_MS       = "total_ms";
+
+  private static ScreenMetrics mInstance = new ScreenMetrics();
+
+  public static ScreenMetrics getInstance() {
+    return mInstance;
+  }
+
+  //One download
+  public static class Sample {
+    public String prefix;
+    public String net;
+    public String quality;
+    public String size;
+    public String ptls;
+
+    public long connectMs = -1; //-1: reused a pooled connection
+    public long firstByteMs;
+    public long bytes;
+    public int  entries;
+    public long unzipMs;
+    public long cacheWriteMs;
+    public long totalMs;
+
+    public String tag() {
+      return prefix + "/" + net + ":" + quality + "/" + size + "/" + ptls;
+    }
+  }
+
+  //tag -> metric -> histogram
+  private final Map<String, Map<String, Histogram>> mHistograms = new TreeMap<String, Map<String, Histogram>>();
+
+  private ScreenMetrics() {
+  }
+
+  public void record(Sample sample) {
+    String tag = sample.tag();
+
+    if(sample.connectMs >= 0)
+      histogram(tag, CONNECT_MS).record(sample.connectMs);
+    histogram(tag, FIRST_BYTE_MS).record(sample.firstByteMs);
+    histogram(tag, BYTES).record(sample.bytes);
+    histogram(tag, ENTRIES).record(sample.entries);
+    histogram(tag, UNZIP_MS).record(sample.unzipMs);
+    histogram(tag, CACHE_WRITE_MS).record(sample.cacheWriteMs);
+    histogram(tag, TOTAL_MS).record(sample.totalMs);
+  }
+
+  public synchronized List<String> getTags() {
+    return Collections.unmodifiableList(new ArrayList<String>(mHistograms.keySet()));
+  }
+
+  //Null if nothing was recorded for tag/metric
+  public synchronized Histogram getHistogram(String tag, String metric) {
+    Map<String, Histogram> metrics = mHistograms.get(tag);
+    return metrics != null ? metrics.get(metric) : null;
+  }
+
+  public String dump() {
+    StringBuilder out = new StringBuilder();
+    for(String tag : getTags()) {
+      out.append(tag).append('\n');
+
+      Map<String, Histogram> metrics;
+      synchronized(this) {
+        metrics = new LinkedHashMap<String, Histogram>(mHistograms.get(tag));
+      }
+
+      for(Map.Entry<String, Histogram> metric : metrics.entrySet())
+        out.append("  ").append(metric.getKey()).append(": ").append(metric.getValue()).append('\n');
+    }
+    return out.toString();
+  }
+
+  public void log() {
+    Log.d(TAG, dump());
+  }
+
+  private synchronized Histogram histogram(String tag, String metric) {
+    Map<String, Histogram> metrics = mHistograms.get(tag);
+    if(metrics == null) {
+      metrics = new LinkedHashMap<String, Histogram>();
+      mHistograms.put(tag, metrics);
+    }
+
+    Histogram histogram = metrics.get(metric);
+    if(histogram == null) {
+      histogram = new Histogram();
+      metrics.put(metric, histogram);
+    }
+    return histogram;
+  }
+}
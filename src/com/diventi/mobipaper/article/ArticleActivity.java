@@ -18,6 +18,7 @@ import com.diventi.eldia.R;
 import com.diventi.mobipaper.BaseActivity;
 import com.diventi.mobipaper.BaseWebView;
 import com.diventi.mobipaper.ScreenManager;
+import com.diventi.mobipaper.cache.DiskCache;
 import com.diventi.mobipaper.ui.ToolbarProvider;
 import com.diventi.mobipaper.ui.ToolbarView;
 
@@ -66,13 +67,18 @@ public class ArticleActivity extends BaseActivity implements OnClickListener {
         mTitle     = uri.getQueryParameter("title");
         mHeader    = uri.getQueryParameter("header");
         
-        if( mScreenManager.articleExists(mUrl) ) {
-          onUrlLoaded(mUrl, true, null, ScreenManager.ARTICLE_PREFIX, false);
-          return;
-        }
-        
-        showLoading(true);
-        loadArticle(mUrl, false);
+        track(mScreenManager.articleExists(mUrl, new DiskCache.Callback<Boolean>() {
+          @Override
+          public void onResult(Boolean exists) {
+            if( exists != null && exists ) {
+              onUrlLoaded(mUrl, true, null, ScreenManager.ARTICLE_PREFIX, false);
+              return;
+            }
+            
+            showLoading(true);
+            loadArticle(mUrl, false);
+          }
+        }));
         
       } catch (Exception ex) {
         //TODO: mostrar alert
@@ -0,0 +1,89 @@
+package com.diventi.mobipaper.cache;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.diventi.utils.SHA1;
+
+//Cache key of an url: the SHA1 of the url, hashed once and shared by everyone asking
+//for the same url. The hex form (used both as file name and as the element id the
+//pages use in update_image) is only built when first needed.
+public final class CacheKey {
+
+  private static final int MAX_MEMOIZED = 64;
+
+  @SuppressWarnings("serial")
+  private static final Map<String, CacheKey> mMemo = new LinkedHashMap<String, CacheKey>(MAX_MEMOIZED, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheKey> eldest) {
+      return size() > MAX_MEMOIZED;
+    }
+  };
+
+  public static CacheKey forUrl(String url) {
+    synchronized(mMemo) {
+      CacheKey key = mMemo.get(url);
+      if(key != null)
+        return key;
+    }
+
+    CacheKey key = new CacheKey(url, SHA1.digest(url.getBytes()));
+
+    synchronized(mMemo) {
+      mMemo.put(url, key);
+    }
+    return key;
+  }
+
+  private final String mUrl;
+  private final byte[] mHash;
+  private volatile String mName;
+
+  private CacheKey(String url, byte[] hash) {
+    mUrl  = url;
+    mHash = hash;
+  }
+
+  public String url() {
+    return mUrl;
+  }
+
+  //File name stem, ie: <name>.<prefix>
+  public String name() {
+    String name = mName;
+    if(name == null) {
+      name = mHash != null ? SHA1.encodeHex(mHash) : mUrl;
+      mName = name;
+    }
+    return name;
+  }
+
+  //Id of the element showing this image in the cached pages
+  public String jsId() {
+    return name();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if(this == o)
+      return true;
+    if(!(o instanceof CacheKey))
+      return false;
+
+    CacheKey other = (CacheKey)o;
+    if(mHash == null || other.mHash == null)
+      return mUrl.equals(other.mUrl);
+    return Arrays.equals(mHash, other.mHash);
+  }
+
+  @Override
+  public int hashCode() {
+    return mHash != null ? Arrays.hashCode(mHash) : mUrl.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return name();
+  }
+}
@@ -0,0 +1,255 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.commons.io.FileUtils;
+
+//Maps entry names to files. Entries named <40-hex-sha1>.<prefix> are spread over
+//sub folders named after the first `fanout` hex chars of the hash so that no single
+//directory grows with the cache; every other name (config.json, css/...) stays at the root.
+public class CacheLayout {
+
+  private static final String MARK_FILE = ".layout";
+  private static final int    HASH_LENGTH = 40;
+  private static final int    MAX_FANOUT  = 4;
+
+  private final File mFolder;
+  private final int  mFanout;
+
+  private volatile boolean mMigrated;
+
+  public CacheLayout(File folder, int fanout) {
+    mFolder  = folder;
+    mFanout  = Math.max(0, Math.min(fanout, MAX_FANOUT));
+    mMigrated = String.valueOf(mFanout).equals(readMark());
+  }
+
+  public File getFolder() {
+    return mFolder;
+  }
+
+  public boolean isMigrated() {
+    return mMigrated;
+  }
+
+  //Where name is (or will be) stored
+  public File fileFor(String name) {
+    if(mFanout == 0 || !isHashName(name))
+      return new File(mFolder, name);
+
+    return new File(new File(mFolder, name.substring(0, mFanout)), name);
+  }
+
+  //Where name can be read from right now; while the migration has not finished an entry may
+  //still sit at its old location
+  public File existingFileFor(String name) {
+    File file = fileFor(name);
+    if(mMigrated || file.exists())
+      return file;
+
+    File legacy = new File(mFolder, name);
+    if(legacy.exists())
+      return legacy;
+
+    return file;
+  }
+
+  //Called before writing name so a not yet migrated copy can't shadow (or later overwrite) the new one
+  public File prepareWrite(String name) {
+    File file = fileFor(name);
+
+    File parent = file.getParentFile();
+    if(!parent.exists())
+      parent.mkdirs();
+
+    if(!mMigrated) {
+      File legacy = new File(mFolder, name);
+      if(!legacy.equals(file))
+        legacy.delete();
+    }
+
+    return file;
+  }
+
+  //All entry files (root and shard folders) accepted by filter
+  public File[] listEntries(FilenameFilter filter) {
+    ArrayList<File> entries = new ArrayList<File>();
+
+    addFiles(mFolder, filter, entries);
+    for(File dir : shardFolders())
+      addFiles(dir, filter, entries);
+
+    return entries.toArray(new File[entries.size()]);
+  }
+
+  //Maps a file:// url that a page inside a shard folder resolved relative to itself
+  //(ie: ab/<hash>.i or ab/css/layout.css) to the real file, null if no mapping applies
+  public File resolve(String url) {
+    String path = pathOf(url);
+    if(path == null)
+      return null;
+
+    int slash = path.indexOf('/');
+    if(mFanout == 0 || slash != mFanout || !isHex(path.substring(0, slash)))
+      return null;
+
+    String rel = path.substring(slash + 1);
+    File file = rel.indexOf('/') == -1 ? existingFileFor(rel) : new File(mFolder, rel);
+
+    if(!file.exists() || file.getAbsolutePath().equals(mFolder.getAbsolutePath() + "/" + path))
+      return null;
+
+    return file;
+  }
+
+  //Path of a file:// url relative to the cache folder, without the shard folder a page inside
+  //one resolved it against (ie: ab/css/layout.css -> css/layout.css), null if outside the cache
+  public String relativePath(String url) {
+    String path = pathOf(url);
+    if(path == null)
+      return null;
+
+    int slash = path.indexOf('/');
+    if(mFanout != 0 && slash == mFanout && isHex(path.substring(0, slash)))
+      return path.substring(slash + 1);
+
+    return path;
+  }
+
+  private String pathOf(String url) {
+    String root = "file://" + mFolder.getAbsolutePath() + "/";
+    if(!url.startsWith(root))
+      return null;
+
+    String path = url.substring(root.length());
+    int end = indexOfAny(path, "?#");
+    if(end != -1)
+      path = path.substring(0, end);
+
+    return path;
+  }
+
+  //Moves entries left by a previous layout (flat, or another fan-out) to their place in this one
+  public void migrate() {
+    if(mMigrated)
+      return;
+
+    File[] files = mFolder.listFiles();
+    if(files == null)
+      return;
+
+    for(File file : files) {
+      String name = file.getName();
+
+      if(file.isFile() && isHashName(name)) {
+        moveTo(file, fileFor(name));
+        continue;
+      }
+
+      if(file.isDirectory() && name.length() <= MAX_FANOUT && isHex(name)) {
+        File[] entries = file.listFiles();
+        if(entries != null) {
+          for(File entry : entries) {
+            if(entry.isFile() && isHashName(entry.getName()))
+              moveTo(entry, fileFor(entry.getName()));
+          }
+        }
+
+        if(name.length() != mFanout)
+          file.delete();
+      }
+    }
+
+    writeMark(String.valueOf(mFanout));
+    mMigrated = true;
+  }
+
+  private void moveTo(File from, File to) {
+    if(from.equals(to))
+      return;
+
+    //A newer copy was already written in the new layout
+    if(to.exists()) {
+      from.delete();
+      return;
+    }
+
+    File parent = to.getParentFile();
+    if(!parent.exists())
+      parent.mkdirs();
+
+    from.renameTo(to);
+  }
+
+  private ArrayList<File> shardFolders() {
+    ArrayList<File> dirs = new ArrayList<File>();
+    if(mFanout == 0 && mMigrated)
+      return dirs;
+
+    File[] files = mFolder.listFiles();
+    if(files == null)
+      return dirs;
+
+    for(File file : files) {
+      String name = file.getName();
+      if(file.isDirectory() && name.length() <= MAX_FANOUT && isHex(name))
+        dirs.add(file);
+    }
+
+    return dirs;
+  }
+
+  private static void addFiles(File dir, FilenameFilter filter, ArrayList<File> to) {
+    File[] files = dir.listFiles(filter);
+    if(files == null)
+      return;
+
+    for(File file : files) {
+      if(file.isFile())
+        to.add(file);
+    }
+  }
+
+  private String readMark() {
+    try {
+      return FileUtils.readFileToString(new File(mFolder, MARK_FILE)).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void writeMark(String value) {
+    try {
+      FileUtils.writeStringToFile(new File(mFolder, MARK_FILE), value);
+    } catch (IOException e) {
+
+    }
+  }
+
+  static boolean isHashName(String name) {
+    return name.length() > HASH_LENGTH + 1 && name.charAt(HASH_LENGTH) == '.' && isHex(name.substring(0, HASH_LENGTH));
+  }
+
+  private static boolean isHex(String s) {
+    if(s.length() == 0)
+      return false;
+
+    for(int i=0; i<s.length(); i++) {
+      char c = s.charAt(i);
+      if( !((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')) )
+        return false;
+    }
+    return true;
+  }
+
+  private static int indexOfAny(String s, String chars) {
+    for(int i=0; i<s.length(); i++) {
+      if(chars.indexOf(s.charAt(i)) != -1)
+        return i;
+    }
+    return -1;
+  }
+}
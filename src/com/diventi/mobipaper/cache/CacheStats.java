@@ -0,0 +1,150 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.diventi.utils.Histogram;
+
+//How well DiskCache is doing: hits and misses per prefix, bytes served from the cache vs
+//downloaded (recorded by the downloaders, as read off the wire), and what purge/remove
+//evicted (count, bytes, age), to tune MAX_CACHE_SIZE_MB and the purge target with data.
+//Counters live for the process; DiskCache writes a snapshot now and then.
+public class CacheStats {
+
+  public static final String REASON_PURGE  = "purge";
+  public static final String REASON_REMOVE = "remove";
+
+  private static final String NO_PREFIX = "-";
+
+  //prefix -> {hits, misses}
+  private final ConcurrentHashMap<String, AtomicLong[]> mLookups   = new ConcurrentHashMap<String, AtomicLong[]>();
+  //reason -> {count, bytes}
+  private final ConcurrentHashMap<String, AtomicLong[]> mEvictions = new ConcurrentHashMap<String, AtomicLong[]>();
+
+  private final AtomicLong mCacheBytes   = new AtomicLong();
+  private final AtomicLong mNetworkBytes = new AtomicLong();
+  private final Histogram  mEvictionAge  = new Histogram(); //minutes
+
+  private final long mSince = System.currentTimeMillis();
+
+  public void recordLookup(String prefix, boolean hit) {
+    counters(mLookups, prefix != null ? prefix : NO_PREFIX)[hit ? 0 : 1].incrementAndGet();
+  }
+
+  public void recordCacheBytes(long bytes) {
+    mCacheBytes.addAndGet(bytes);
+  }
+
+  public void recordNetworkBytes(long bytes) {
+    mNetworkBytes.addAndGet(bytes);
+  }
+
+  //createdAt: when the evicted entry was written, 0 if unknown
+  public void recordEviction(String reason, long bytes, long createdAt) {
+    AtomicLong[] counters = counters(mEvictions, reason);
+    counters[0].incrementAndGet();
+    counters[1].addAndGet(bytes);
+
+    if(createdAt > 0)
+      mEvictionAge.record((System.currentTimeMillis() - createdAt) / 60000);
+  }
+
+  public long hits(String prefix) {
+    AtomicLong[] counters = mLookups.get(prefix);
+    return counters != null ? counters[0].get() : 0;
+  }
+
+  public long misses(String prefix) {
+    AtomicLong[] counters = mLookups.get(prefix);
+    return counters != null ? counters[1].get() : 0;
+  }
+
+  public long cacheBytes() {
+    return mCacheBytes.get();
+  }
+
+  public long networkBytes() {
+    return mNetworkBytes.get();
+  }
+
+  public long evictions(String reason) {
+    AtomicLong[] counters = mEvictions.get(reason);
+    return counters != null ? counters[0].get() : 0;
+  }
+
+  public long evictedBytes(String reason) {
+    AtomicLong[] counters = mEvictions.get(reason);
+    return counters != null ? counters[1].get() : 0;
+  }
+
+  //Age in minutes of the entries when they were evicted
+  public Histogram evictionAge() {
+    return mEvictionAge;
+  }
+
+  public JSONObject toJSON() {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("since", mSince);
+      json.put("taken", System.currentTimeMillis());
+
+      JSONObject lookups = new JSONObject();
+      for(Map.Entry<String, AtomicLong[]> entry : sorted(mLookups).entrySet()) {
+        JSONObject prefix = new JSONObject();
+        prefix.put("hits", entry.getValue()[0].get());
+        prefix.put("misses", entry.getValue()[1].get());
+        lookups.put(entry.getKey(), prefix);
+      }
+      json.put("lookups", lookups);
+
+      json.put("cache_bytes", mCacheBytes.get());
+      json.put("network_bytes", mNetworkBytes.get());
+
+      JSONObject evictions = new JSONObject();
+      for(Map.Entry<String, AtomicLong[]> entry : sorted(mEvictions).entrySet()) {
+        JSONObject reason = new JSONObject();
+        reason.put("count", entry.getValue()[0].get());
+        reason.put("bytes", entry.getValue()[1].get());
+        evictions.put(entry.getKey(), reason);
+      }
+      json.put("evictions", evictions);
+
+      JSONObject age = new JSONObject();
+      age.put("count", mEvictionAge.count());
+      age.put("p50", mEvictionAge.percentile(0.5));
+      age.put("p90", mEvictionAge.percentile(0.9));
+      age.put("max", mEvictionAge.max());
+      json.put("eviction_age_minutes", age);
+    } catch (JSONException e) {
+
+    }
+    return json;
+  }
+
+  public void writeSnapshot(File file) throws IOException {
+    FileUtils.writeStringToFile(file, toJSON().toString(), "utf-8");
+  }
+
+  private static AtomicLong[] counters(ConcurrentHashMap<String, AtomicLong[]> map, String key) {
+    AtomicLong[] counters = map.get(key);
+    if(counters == null) {
+      AtomicLong[] created = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+      counters = map.putIfAbsent(key, created);
+      if(counters == null)
+        counters = created;
+    }
+    return counters;
+  }
+
+  private static Map<String, AtomicLong[]> sorted(Map<String, AtomicLong[]> map) {
+    return new TreeMap<String, AtomicLong[]>(map);
+  }
+}
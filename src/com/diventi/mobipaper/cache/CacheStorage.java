@@ -0,0 +1,33 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+
+//Storage backend used by DiskCache. Entries are addressed by key and prefix;
+//a null prefix means key is already the full entry name (ie: zip entries).
+public interface CacheStorage {
+
+  boolean open(CacheLayout layout);
+
+  byte[] get(String key, String prefix);
+
+  boolean put(String key, byte[] data, String prefix);
+
+  //Moves an already written file into the entry (source must be on the cache filesystem)
+  boolean putFile(String key, File source, String prefix);
+
+  boolean remove(String key, String prefix);
+
+  boolean exists(String key, String prefix);
+
+  long createdAt(String key, String prefix);
+
+  //Location on disk of a file backed entry (the WebView loads screens and images by path)
+  File getFile(String key, String prefix);
+
+  //Total bytes used by entries with the given prefixes
+  long size(String[] prefixes);
+
+  //Removes the oldest entries with the given prefixes until at least bytes are freed, returns bytes removed.
+  //Each removed entry is recorded in stats as a purge eviction.
+  long shrink(long bytes, String[] prefixes, CacheStats stats);
+}
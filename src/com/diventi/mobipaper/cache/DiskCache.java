@@ -4,21 +4,29 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 
 import com.diventi.mobipaper.ScreenManager;
+import com.loopj.android.http.FileHttpResponseHandler;
 
 public class DiskCache {
 
+  private static final String TAG = "DiskCache";
+
   private static DiskCache mInstance = new DiskCache();
   
   public static DiskCache getInstance()
@@ -29,13 +37,41 @@ public class DiskCache {
     }
   }
 
-  private File    mCacheFolder;
-  private double  mCacheSizeMB;
+  //onResult gets null when nothing was found or when the lookup failed, failures are
+  //logged unless the callback is an ErrorCallback
+  public interface Callback<T> {
+    void onResult(T result);
+  }
+
+  public interface ErrorCallback<T> extends Callback<T> {
+    void onError(Throwable error);
+  }
+
+  public static final int BACKEND_FILE   = 0;
+  public static final int BACKEND_SQLITE = 1;
+
+  private File         mCacheFolder;
+  private double       mCacheSizeMB;
+  private CacheLayout  mLayout;
+  private CacheStorage mStorage;
   
   private boolean mInitialized;
   
+  private final CacheStats mStats = new CacheStats();
+  private long mLastStatsSnapshot;
+  
+  private final ExecutorService   mIOExecutor     = Executors.newSingleThreadExecutor(new IOThreadFactory());
+  private final Handler           mMainHandler    = new Handler(Looper.getMainLooper());
+  private final ArrayList<Lookup<?>> mPendingLookups = new ArrayList<Lookup<?>>();
+  
   private static final String CACHE_FOLDER          = "mobipaper_cache";
+  private static final String STATS_FILE            = "cache_stats.json";
+  private static final long   STATS_SNAPSHOT_INTERVAL = 10*60*1000;
   private static final double BYTES_IN_ONE_MEGABYTE = 1024.0*1024.0;
+  private static final long   STALE_TEMP_AGE        = 60*60*1000;
+  
+  private static final String[] SIZED_PREFIXES     = new String[] {ScreenManager.IMAGE_PREFIX, ScreenManager.ARTICLE_PREFIX, ScreenManager.IMAGE_GROUP_PREFIX, DiskHttpCacheStorage.HEADERS_PREFIX, DiskHttpCacheStorage.BODY_PREFIX};
+  private static final String[] REMOVABLE_PREFIXES = new String[] {ScreenManager.ARTICLE_PREFIX, ScreenManager.IMAGE_GROUP_PREFIX, ScreenManager.IMAGE_PREFIX , ScreenManager.CLASSIFIED_PREFIX, DiskHttpCacheStorage.HEADERS_PREFIX, DiskHttpCacheStorage.BODY_PREFIX};
   
   public DiskCache() {
     mInitialized = false;
@@ -44,7 +80,7 @@ public class DiskCache {
   public String getMediaVersion() {
     String mediaVersion = "0";
     
-    File file = buildFile("css/version", ".txt");
+    File file = mStorage.getFile("css/version", ".txt");
     if(file.exists())
     {
       try {
@@ -61,35 +97,43 @@ public class DiskCache {
   }
   
   public void configure(File rootFolder, double cacheSizeMB) {
+    configure(rootFolder, cacheSizeMB, BACKEND_FILE, 0);
+  }
+  
+  //fanout: number of hash chars used to name shard folders, 0 keeps every entry in the cache folder
+  public void configure(File rootFolder, double cacheSizeMB, int backend, int fanout) {
 
     mCacheFolder = new File(rootFolder, CACHE_FOLDER);
     mCacheSizeMB = cacheSizeMB;
+    mLayout      = new CacheLayout(mCacheFolder, fanout);
+    mStorage     = backend == BACKEND_SQLITE ? new SqliteCacheStorage() : new FileCacheStorage();
     
-    mInitialized = true;
+    mInitialized = mStorage.open(mLayout);
     
-    if( mCacheFolder.exists() == true )
-      return;
-    
-    if( mCacheFolder.mkdirs() == true )
-      return;
-
-    mInitialized = false;
+    if(mInitialized && !mLayout.isMigrated())
+      migrateLayout();
+  }
+  
+  //Moves entries from a previous layout in the background; lookups fall back to the old location meanwhile
+  private void migrateLayout() {
+    Thread t = new Thread("DiskCache-migration") {
+      public void run() {
+        mLayout.migrate();
+      }
+    };
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
   }
   
   public byte[] get(String key, String prefix) {
     if(!mInitialized) return null;
     
-    File file = buildFile(key, prefix);
-    if(!file.exists())
-      return null;
+    byte[] data = mStorage.get(key, prefix);
+    mStats.recordLookup(prefix, data != null);
+    if(data != null)
+      mStats.recordCacheBytes(data.length);
     
-    try {
-      return IOUtils.toByteArray(new FileInputStream(file));
-    } catch (FileNotFoundException e) {
-      return null;
-    } catch (IOException e) {
-      return null;
-    }
+    return data;
   }
   
   public boolean put(String fullname, byte[] data) {
@@ -100,39 +144,161 @@ public class DiskCache {
     
     if(!mInitialized) return false;
     
-    File file = buildFile(key, prefix);
-    try {
-      FileOutputStream fs = new FileOutputStream(file);
-      fs.write(data);
-      fs.close();
-      return true;
-    } catch (Exception e) {
-      return false;
-    }
-
+    boolean stored = mStorage.put(key, data, prefix);
+    if(stored)
+      snapshotStatsIfDue();
+    return stored;
+  }
+  
+  //Moves source (ie: a finished download in the cache folder) into the entry without reading it
+  public boolean putFile(String key, File source, String prefix) {
+    if(!mInitialized) return false;
+    
+    boolean stored = mStorage.putFile(key, source, prefix);
+    if(stored)
+      snapshotStatsIfDue();
+    return stored;
   }
   
   public boolean remove(String key, String prefix) {
     if(!mInitialized) return false;
     
-    File file = buildFile(key, prefix);
-    return file.delete();
+    long length  = mStorage.getFile(key, prefix).length();
+    long created = mStorage.createdAt(key, prefix);
+    boolean removed = mStorage.remove(key, prefix);
+    if(removed) {
+      mStats.recordEviction(CacheStats.REASON_REMOVE, length, created);
+      snapshotStatsIfDue();
+    }
+    return removed;
   }
   
   public boolean exists(String key, String prefix) {
     if(!mInitialized) return false;
     
-    File file = buildFile(key, prefix);
-    return file.exists();
+    boolean exists = mStorage.exists(key, prefix);
+    mStats.recordLookup(prefix, exists);
+    return exists;
   }
 
   public long createdAt(String key, String prefix) {
     if(!mInitialized) return 0;
     
-    File file = buildFile(key, prefix);
-    return file.lastModified();
+    return mStorage.createdAt(key, prefix);
   }
 
+  public File getFile(String key, String prefix) {
+    return mStorage.getFile(key, prefix);
+  }
+
+  public byte[] get(CacheKey key, String prefix) {
+    return get(key.name(), prefix);
+  }
+  
+  public boolean put(CacheKey key, byte[] data, String prefix) {
+    return put(key.name(), data, prefix);
+  }
+  
+  public boolean putFile(CacheKey key, File source, String prefix) {
+    return putFile(key.name(), source, prefix);
+  }
+  
+  public boolean remove(CacheKey key, String prefix) {
+    return remove(key.name(), prefix);
+  }
+  
+  public boolean exists(CacheKey key, String prefix) {
+    return exists(key.name(), prefix);
+  }
+  
+  public long createdAt(CacheKey key, String prefix) {
+    return createdAt(key.name(), prefix);
+  }
+  
+  public File getFile(CacheKey key, String prefix) {
+    return getFile(key.name(), prefix);
+  }
+  
+  //Real location of a file:// url a cached page resolved relative to its shard folder, null if none
+  public File resolve(String url) {
+    if(!mInitialized) return null;
+    
+    return mLayout.resolve(url);
+  }
+
+  //Path of a file:// url relative to the cache folder, with any shard folder removed; null if outside the cache
+  public String relativePath(String url) {
+    if(!mInitialized) return null;
+    
+    return mLayout.relativePath(url);
+  }
+
+  public Future<byte[]> get(final String key, final String prefix, Callback<byte[]> callback) {
+    return execute(new Callable<byte[]>() {
+      public byte[] call() {
+        return get(key, prefix);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> exists(final String key, final String prefix, Callback<Boolean> callback) {
+    return execute(new Callable<Boolean>() {
+      public Boolean call() {
+        return exists(key, prefix);
+      }
+    }, callback);
+  }
+
+  public Future<Long> createdAt(final String key, final String prefix, Callback<Long> callback) {
+    return execute(new Callable<Long>() {
+      public Long call() {
+        return createdAt(key, prefix);
+      }
+    }, callback);
+  }
+
+  public Future<Boolean> exists(CacheKey key, String prefix, Callback<Boolean> callback) {
+    return exists(key.name(), prefix, callback);
+  }
+
+  public Future<Long> createdAt(CacheKey key, String prefix, Callback<Long> callback) {
+    return createdAt(key.name(), prefix, callback);
+  }
+
+  //Runs disk work on the cache I/O thread; callback (if any) is invoked on the main thread
+  public <T> Future<T> execute(Callable<T> work, Callback<T> callback) {
+    Lookup<T> lookup = new Lookup<T>(work, callback);
+    
+    synchronized(mPendingLookups) {
+      mPendingLookups.add(lookup);
+      if(mPendingLookups.size() == 1)
+        mIOExecutor.execute(mDrainLookups);
+    }
+    
+    return lookup;
+  }
+
+  //Runs every lookup queued so far and delivers all their results in a single main thread post
+  private final Runnable mDrainLookups = new Runnable() {
+    public void run() {
+      final ArrayList<Lookup<?>> batch;
+      synchronized(mPendingLookups) {
+        batch = new ArrayList<Lookup<?>>(mPendingLookups);
+        mPendingLookups.clear();
+      }
+      
+      for(Lookup<?> lookup : batch)
+        lookup.run();
+      
+      mMainHandler.post(new Runnable() {
+        public void run() {
+          for(Lookup<?> lookup : batch)
+            lookup.deliver();
+        }
+      });
+    }
+  };
+
   public double maxSize() {
     return mCacheSizeMB;
   }
@@ -140,20 +306,14 @@ public class DiskCache {
   public double size() {
     if(!mInitialized) return 0;
     
-    long total = 0;
-    
-    Iterator<File> iter = FileUtils.iterateFiles(mCacheFolder, new String[] {ScreenManager.IMAGE_PREFIX,ScreenManager.ARTICLE_PREFIX,ScreenManager.IMAGE_GROUP_PREFIX}, false);
-    while(iter.hasNext()) {
-      File file = (File) iter.next();
-      total += file.length();
-    }
-    
-    return ((double)total)/BYTES_IN_ONE_MEGABYTE;
+    return ((double)mStorage.size(SIZED_PREFIXES))/BYTES_IN_ONE_MEGABYTE;
   }
   
   public void purge() {
     if(!mInitialized) return;
     
+    removeStaleTemps();
+    
     double actual_size = size();
     double max_size    = maxSize();
     
@@ -170,50 +330,98 @@ public class DiskCache {
     return mCacheFolder;
   }
   
+  //Temp files of downloads the process died in the middle of (http cache bodies at the root,
+  //FileHttpResponseHandler's next to their target in the shard folders). They are no entry,
+  //so neither size() nor shrink see them; old enough ones can't belong to a download still running.
+  private void removeStaleTemps() {
+    final long before = System.currentTimeMillis() - STALE_TEMP_AGE;
+    File[] temps = mLayout.listEntries(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return (name.startsWith(DiskHttpCacheStorage.TEMP_PREFIX) && name.endsWith(DiskHttpCacheStorage.TEMP_SUFFIX))
+            || FileHttpResponseHandler.isTempFile(name);
+      }
+    });
+
+    for(File temp : temps) {
+      if(temp.lastModified() < before)
+        temp.delete();
+    }
+  }
+  
   private void shrinkCache(double removeMB) {
 
     if(removeMB < 0)
       return;
     
-    File[] files = mCacheFolder.listFiles( new RemovableFilesFilter(new String[] {ScreenManager.ARTICLE_PREFIX, ScreenManager.IMAGE_GROUP_PREFIX, ScreenManager.IMAGE_PREFIX , ScreenManager.CLASSIFIED_PREFIX}) );
-    Arrays.sort(files, new Comparator<File>() {
-      public int compare(File f1, File f2)
-      {
-        return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
-      }
-    });
+    mStorage.shrink((long)(removeMB*BYTES_IN_ONE_MEGABYTE), REMOVABLE_PREFIXES, mStats);
+    
+    mLastStatsSnapshot = 0;
+    snapshotStatsIfDue();
+  }
+
+  public CacheStats getStats() {
+    return mStats;
+  }
+
+  //Written next to (not inside) the cache folder so it doesn't count towards its size
+  public File getStatsFile() {
+    return new File(mCacheFolder.getParentFile(), STATS_FILE);
+  }
 
-    for(int i=0; i<files.length && removeMB > 0; i++) {
-      File file = (File) files[i];
-      removeMB -= ((double)file.length())/BYTES_IN_ONE_MEGABYTE;
-      file.delete();
+  //Writes the stats on the I/O thread, at most once per STATS_SNAPSHOT_INTERVAL
+  private void snapshotStatsIfDue() {
+    long now = System.currentTimeMillis();
+    synchronized(mStats) {
+      if(now - mLastStatsSnapshot < STATS_SNAPSHOT_INTERVAL)
+        return;
+      mLastStatsSnapshot = now;
     }
 
-    return;
+    mIOExecutor.execute(new Runnable() {
+      public void run() {
+        try {
+          mStats.writeSnapshot(getStatsFile());
+        } catch (IOException e) {
+
+        }
+      }
+    });
   }
   
-  private File buildFile(String key, String prefix) {
-    if(prefix == null)
-      return new File(String.format("%s/%s", mCacheFolder, key));
-    else
-      return new File(String.format("%s/%s.%s", mCacheFolder, key, prefix));
-  }
-
-  class RemovableFilesFilter implements FilenameFilter {
+  private class Lookup<T> extends FutureTask<T> {
+    
+    private final Callback<T> mCallback;
     
-    private String[] extentions;
-    RemovableFilesFilter(String[] extentions) {
-      this.extentions = extentions;
+    Lookup(Callable<T> work, Callback<T> callback) {
+      super(work);
+      mCallback = callback;
     }
     
-    public boolean accept(File dir, String name) {
+    void deliver() {
+      if(mCallback == null || isCancelled())
+        return;
       
-      for(String ext : extentions) {
-        if( name.endsWith("."+ext) )
-          return true;
+      T result = null;
+      try {
+        result = get();
+      } catch (Exception e) {
+        Throwable error = e instanceof ExecutionException ? e.getCause() : e;
+        if(mCallback instanceof ErrorCallback) {
+          ((ErrorCallback<T>)mCallback).onError(error);
+          return;
+        }
+        Log.w(TAG, "Cache lookup failed", error);
       }
-      
-      return false;
+      mCallback.onResult(result);
+    }
+  }
+  
+  static class IOThreadFactory implements ThreadFactory {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "DiskCache");
+      t.setDaemon(true);
+      return t;
     }
-}  
+  }
+
 }
@@ -0,0 +1,160 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.IOUtils;
+
+import com.diventi.mobipaper.ScreenManager;
+import com.loopj.android.http.HttpCacheEntry;
+import com.loopj.android.http.HttpCacheStorage;
+
+//Http cache for AsyncHttpClient on top of DiskCache. Headers are kept in a small
+//<key>.hh entry and the body in <key>.hb. Images the pages load are not copied: their
+//handler saves them to <key>.i (after checking the content type) and that is the body.
+public class DiskHttpCacheStorage implements HttpCacheStorage {
+
+  public static final String HEADERS_PREFIX = "hh";
+  public static final String BODY_PREFIX    = "hb";
+
+  //Bodies being written: <TEMP_PREFIX>*<TEMP_SUFFIX> in the cache folder
+  static final String TEMP_PREFIX = ".http";
+  static final String TEMP_SUFFIX = ".part";
+
+  public HttpCacheEntry get(String url) {
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+
+    byte[] data = cache.get(key, HEADERS_PREFIX);
+    if(data == null)
+      return null;
+
+    HttpCacheEntry entry = HttpCacheEntry.fromByteArray(data);
+    File body = entry != null ? getBody(cache, key) : null;
+    if(body == null) {
+      //Body was purged (or headers are from an older format)
+      cache.remove(key, HEADERS_PREFIX);
+      return null;
+    }
+
+    entry.setBody(body);
+    return entry;
+  }
+
+  public BodyWriter put(String url, HttpCacheEntry entry) {
+    DiskCache cache = DiskCache.getInstance();
+    if(cache.getFolder() == null)
+      return null;
+
+    //Written next to the entries so putFile is a rename
+    try {
+      File temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, cache.getFolder());
+      return new DiskBodyWriter(CacheKey.forUrl(url), entry, temp);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  public boolean putHeaders(String url, HttpCacheEntry entry) {
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+
+    //Only the page images are replayed from elsewhere
+    if(!entry.getBody().equals(cache.getFile(key, ScreenManager.IMAGE_PREFIX)))
+      return false;
+
+    cache.remove(key, BODY_PREFIX);
+    return cache.put(key, entry.toByteArray(), HEADERS_PREFIX);
+  }
+
+  //Whether the stored response for url can be used without asking the server
+  public boolean isFresh(String url) {
+    HttpCacheEntry entry = get(url);
+    return entry != null && entry.isFresh(System.currentTimeMillis());
+  }
+
+  public void update(String url, HttpCacheEntry entry) {
+    DiskCache.getInstance().put(CacheKey.forUrl(url), entry.toByteArray(), HEADERS_PREFIX);
+  }
+
+  public void remove(String url) {
+    DiskCache cache = DiskCache.getInstance();
+    CacheKey key = CacheKey.forUrl(url);
+
+    cache.remove(key, BODY_PREFIX);
+    cache.remove(key, HEADERS_PREFIX);
+  }
+
+  //<key>.hb, or the page image if the body was left to its handler (see putHeaders)
+  private static File getBody(DiskCache cache, CacheKey key) {
+    File body = cache.getFile(key, BODY_PREFIX);
+    if(body != null && body.exists())
+      return body;
+
+    body = cache.getFile(key, ScreenManager.IMAGE_PREFIX);
+    if(body != null && body.exists())
+      return body;
+    return null;
+  }
+
+  private static class DiskBodyWriter implements BodyWriter {
+    private final CacheKey       mKey;
+    private final HttpCacheEntry mEntry;
+    private final File           mTemp;
+    private FileOutputStream     mStream;
+    private boolean              mDone;
+
+    DiskBodyWriter(CacheKey key, HttpCacheEntry entry, File temp) throws IOException {
+      mKey    = key;
+      mEntry  = entry;
+      mTemp   = temp;
+      mStream = new FileOutputStream(temp);
+    }
+
+    public synchronized void write(byte[] buffer, int offset, int count) throws IOException {
+      if(mDone)
+        return;
+
+      try {
+        mStream.write(buffer, offset, count);
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+    }
+
+    public synchronized boolean commit() {
+      if(mDone)
+        return false;
+
+      mDone = true;
+      try {
+        mStream.close();
+
+        DiskCache cache = DiskCache.getInstance();
+        if(!cache.putFile(mKey, mTemp, BODY_PREFIX))
+          return false;
+
+        if(!cache.put(mKey, mEntry.toByteArray(), HEADERS_PREFIX)) {
+          cache.remove(mKey, BODY_PREFIX);
+          return false;
+        }
+        return true;
+      } catch (IOException e) {
+        return false;
+      } finally {
+        mTemp.delete();
+      }
+    }
+
+    public synchronized void abort() {
+      if(mDone)
+        return;
+
+      mDone = true;
+      IOUtils.closeQuietly(mStream);
+      mTemp.delete();
+    }
+  }
+}
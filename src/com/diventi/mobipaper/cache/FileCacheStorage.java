@@ -0,0 +1,141 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.io.IOUtils;
+
+//One file per entry, named <key>.<prefix>, metadata taken from the filesystem
+public class FileCacheStorage implements CacheStorage {
+
+  private CacheLayout mLayout;
+
+  public boolean open(CacheLayout layout) {
+    mLayout = layout;
+
+    File folder = mLayout.getFolder();
+    if( folder.exists() == true )
+      return true;
+
+    return folder.mkdirs();
+  }
+
+  public byte[] get(String key, String prefix) {
+    File file = getFile(key, prefix);
+    if(!file.exists())
+      return null;
+
+    FileInputStream is = null;
+    try {
+      is = new FileInputStream(file);
+      return IOUtils.toByteArray(is);
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  public boolean put(String key, byte[] data, String prefix) {
+    File file = mLayout.prepareWrite(name(key, prefix));
+    try {
+      FileOutputStream fs = new FileOutputStream(file);
+      fs.write(data);
+      fs.close();
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  public boolean putFile(String key, File source, String prefix) {
+    File file = mLayout.prepareWrite(name(key, prefix));
+    if(source.renameTo(file))
+      return true;
+
+    file.delete();
+    return source.renameTo(file);
+  }
+
+  public boolean remove(String key, String prefix) {
+    return getFile(key, prefix).delete();
+  }
+
+  public boolean exists(String key, String prefix) {
+    return getFile(key, prefix).exists();
+  }
+
+  public long createdAt(String key, String prefix) {
+    return getFile(key, prefix).lastModified();
+  }
+
+  public File getFile(String key, String prefix) {
+    return mLayout.existingFileFor(name(key, prefix));
+  }
+
+  public long size(String[] prefixes) {
+    long total = 0;
+
+    for(File file : mLayout.listEntries( new RemovableFilesFilter(prefixes) ))
+      total += file.length();
+
+    return total;
+  }
+
+  public long shrink(long bytes, String[] prefixes, CacheStats stats) {
+
+    File[] files = mLayout.listEntries( new RemovableFilesFilter(prefixes) );
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2)
+      {
+        return Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+      }
+    });
+
+    long removed = 0;
+    for(int i=0; i<files.length && removed < bytes; i++) {
+      File file = (File) files[i];
+      long length = file.length();
+      long created = file.lastModified();
+      if(file.delete()) {
+        removed += length;
+        stats.recordEviction(CacheStats.REASON_PURGE, length, created);
+      }
+    }
+
+    return removed;
+  }
+
+  private static String name(String key, String prefix) {
+    if(prefix == null)
+      return key;
+    return key + "." + prefix;
+  }
+
+  class RemovableFilesFilter implements FilenameFilter {
+
+    private String[] extentions;
+    RemovableFilesFilter(String[] extentions) {
+      this.extentions = extentions;
+    }
+
+    public boolean accept(File dir, String name) {
+
+      for(String ext : extentions) {
+        if( name.endsWith("."+ext) )
+          return true;
+      }
+
+      return false;
+    }
+  }
+}
@@ -0,0 +1,369 @@
+package com.diventi.mobipaper.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.diventi.mobipaper.ScreenManager;
+
+//Keeps entry metadata in SQLite so lookups, size totals and eviction order are indexed
+//queries instead of directory walks. Small blobs of non web-facing prefixes are stored
+//inline, everything else stays as <key>.<prefix> files so the WebView can still load them.
+//Http validators live with the response headers (see DiskHttpCacheStorage), not here.
+//Reads don't write: last access times are kept in memory and saved with the next write.
+public class SqliteCacheStorage implements CacheStorage {
+
+  private static final String DATABASE_NAME    = "mobipaper_cache.db";
+  private static final String TABLE            = "entries";
+  private static final int    INLINE_MAX_BYTES = 4*1024;
+  private static final String[] INLINE_PREFIXES = new String[] { ScreenManager.IMAGE_GROUP_PREFIX, DiskHttpCacheStorage.HEADERS_PREFIX, "json" };
+
+  private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+      + "name TEXT PRIMARY KEY, "
+      + "key TEXT NOT NULL, "
+      + "prefix TEXT, "
+      + "size INTEGER NOT NULL, "
+      + "created INTEGER NOT NULL, "
+      + "last_access INTEGER NOT NULL, "
+      + "data BLOB)";
+  private static final String CREATE_PREFIX_INDEX = "CREATE INDEX IF NOT EXISTS entries_prefix ON " + TABLE + " (prefix, last_access)";
+
+  private CacheLayout    mLayout;
+  private SQLiteDatabase mDatabase;
+
+  //name -> last access not yet saved
+  private final ConcurrentHashMap<String, Long> mAccessed = new ConcurrentHashMap<String, Long>();
+
+  public boolean open(CacheLayout layout) {
+    mLayout = layout;
+
+    File folder = mLayout.getFolder();
+    if( !folder.exists() && !folder.mkdirs() )
+      return false;
+
+    File dbFile = new File(folder.getParentFile(), DATABASE_NAME);
+    boolean created = !dbFile.exists();
+
+    try {
+      mDatabase = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+      mDatabase.execSQL(CREATE_TABLE);
+      mDatabase.execSQL(CREATE_PREFIX_INDEX);
+    } catch (SQLiteException e) {
+      return false;
+    }
+
+    //First run with this backend: index whatever the file backend left behind
+    if(created)
+      importFolder();
+
+    return true;
+  }
+
+  public byte[] get(String key, String prefix) {
+    String name = name(key, prefix);
+
+    Cursor c = null;
+    try {
+      c = mDatabase.query(TABLE, new String[] {"data"}, "name=?", new String[] {name}, null, null, null);
+      if(!c.moveToFirst())
+        return null;
+
+      byte[] data = c.isNull(0) ? readFile(name) : c.getBlob(0);
+      if(data == null) {
+        //File vanished underneath us
+        deleteRow(name);
+        return null;
+      }
+
+      touch(name);
+      return data;
+    } catch (SQLiteException e) {
+      return null;
+    } finally {
+      if(c != null)
+        c.close();
+    }
+  }
+
+  public boolean put(String key, byte[] data, String prefix) {
+    String name = name(key, prefix);
+    String entryPrefix = prefix != null ? prefix : prefixOf(name);
+    boolean inline = data.length <= INLINE_MAX_BYTES && isInlinePrefix(entryPrefix);
+    flushAccessed();
+
+    File file = mLayout.prepareWrite(name);
+    if(inline)
+      file.delete();
+    else if(!writeFile(file, data))
+      return false;
+
+    return putRow(key, prefix, data.length, inline ? data : null);
+  }
+
+  public boolean putFile(String key, File source, String prefix) {
+    long size = source.length();
+    flushAccessed();
+
+    File file = mLayout.prepareWrite(name(key, prefix));
+    if(!source.renameTo(file)) {
+      file.delete();
+      if(!source.renameTo(file))
+        return false;
+    }
+
+    return putRow(key, prefix, size, null);
+  }
+
+  public boolean remove(String key, String prefix) {
+    String name = name(key, prefix);
+
+    boolean deleted = mLayout.existingFileFor(name).delete();
+    return deleteRow(name) || deleted;
+  }
+
+  public boolean exists(String key, String prefix) {
+    String name = name(key, prefix);
+
+    Cursor c = null;
+    try {
+      c = mDatabase.rawQuery("SELECT data IS NULL FROM " + TABLE + " WHERE name=?", new String[] {name});
+      if(!c.moveToFirst())
+        return false;
+
+      //The cache folder can be cleared by the system behind our back
+      if(c.getInt(0) != 0 && !mLayout.existingFileFor(name).exists()) {
+        deleteRow(name);
+        return false;
+      }
+      return true;
+    } catch (SQLiteException e) {
+      return false;
+    } finally {
+      if(c != null)
+        c.close();
+    }
+  }
+
+  public long createdAt(String key, String prefix) {
+    try {
+      return DatabaseUtils.longForQuery(mDatabase, "SELECT created FROM " + TABLE + " WHERE name=?", new String[] {name(key, prefix)});
+    } catch (SQLiteException e) {
+      return 0;
+    }
+  }
+
+  public File getFile(String key, String prefix) {
+    String name = name(key, prefix);
+    touch(name);
+    return mLayout.existingFileFor(name);
+  }
+
+  public long size(String[] prefixes) {
+    try {
+      return DatabaseUtils.longForQuery(mDatabase, "SELECT IFNULL(SUM(size),0) FROM " + TABLE + " WHERE prefix IN (" + placeholders(prefixes.length) + ")", prefixes);
+    } catch (SQLiteException e) {
+      return 0;
+    }
+  }
+
+  public long shrink(long bytes, String[] prefixes, CacheStats stats) {
+
+    ArrayList<String> names = new ArrayList<String>();
+    long removed = 0;
+
+    //Eviction order needs the latest access times
+    flushAccessed();
+
+    Cursor c = null;
+    try {
+      c = mDatabase.rawQuery("SELECT name, size, created FROM " + TABLE + " WHERE prefix IN (" + placeholders(prefixes.length) + ") ORDER BY last_access", prefixes);
+      while(removed < bytes && c.moveToNext()) {
+        names.add(c.getString(0));
+        removed += c.getLong(1);
+        stats.recordEviction(CacheStats.REASON_PURGE, c.getLong(1), c.getLong(2));
+      }
+    } catch (SQLiteException e) {
+      return 0;
+    } finally {
+      if(c != null)
+        c.close();
+    }
+
+    mDatabase.beginTransaction();
+    try {
+      for(String name : names) {
+        mLayout.existingFileFor(name).delete();
+        mDatabase.delete(TABLE, "name=?", new String[] {name});
+      }
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
+    }
+
+    return removed;
+  }
+
+  private void importFolder() {
+    File[] files = mLayout.listEntries(null);
+
+    mDatabase.beginTransaction();
+    try {
+      for(File file : files) {
+        String name = file.getName();
+        if(name.indexOf('.') <= 0)
+          continue;
+
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("key", keyOf(name));
+        values.put("prefix", prefixOf(name));
+        values.put("size", file.length());
+        values.put("created", file.lastModified());
+        values.put("last_access", file.lastModified());
+        mDatabase.insert(TABLE, null, values);
+      }
+      mDatabase.setTransactionSuccessful();
+    } finally {
+      mDatabase.endTransaction();
+    }
+  }
+
+  private boolean putRow(String key, String prefix, long size, byte[] inlineData) {
+    String name = name(key, prefix);
+    long now = System.currentTimeMillis();
+
+    ContentValues values = new ContentValues();
+    values.put("key", prefix != null ? key : keyOf(name));
+    values.put("prefix", prefix != null ? prefix : prefixOf(name));
+    values.put("size", size);
+    values.put("created", now);
+    values.put("last_access", now);
+    if(inlineData != null)
+      values.put("data", inlineData);
+    else
+      values.putNull("data");
+
+    try {
+      if(mDatabase.update(TABLE, values, "name=?", new String[] {name}) > 0)
+        return true;
+
+      values.put("name", name);
+      return mDatabase.insert(TABLE, null, values) != -1;
+    } catch (SQLiteException e) {
+      return false;
+    }
+  }
+
+  //Called on the UI thread too (getFile), so it only takes note
+  private void touch(String name) {
+    mAccessed.put(name, System.currentTimeMillis());
+  }
+
+  //Saves the pending access times in one transaction
+  private void flushAccessed() {
+    if(mAccessed.isEmpty())
+      return;
+
+    try {
+      mDatabase.beginTransaction();
+      try {
+        Iterator<Map.Entry<String, Long>> iterator = mAccessed.entrySet().iterator();
+        while(iterator.hasNext()) {
+          Map.Entry<String, Long> entry = iterator.next();
+          iterator.remove();
+
+          ContentValues values = new ContentValues();
+          values.put("last_access", entry.getValue());
+          mDatabase.update(TABLE, values, "name=?", new String[] {entry.getKey()});
+        }
+        mDatabase.setTransactionSuccessful();
+      } finally {
+        mDatabase.endTransaction();
+      }
+    } catch (SQLiteException e) {
+
+    }
+  }
+
+  private boolean deleteRow(String name) {
+    try {
+      return mDatabase.delete(TABLE, "name=?", new String[] {name}) > 0;
+    } catch (SQLiteException e) {
+      return false;
+    }
+  }
+
+  private byte[] readFile(String name) {
+    File file = mLayout.existingFileFor(name);
+    if(!file.exists())
+      return null;
+
+    FileInputStream is = null;
+    try {
+      is = new FileInputStream(file);
+      return IOUtils.toByteArray(is);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  private boolean writeFile(File file, byte[] data) {
+    try {
+      FileOutputStream fs = new FileOutputStream(file);
+      fs.write(data);
+      fs.close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static boolean isInlinePrefix(String prefix) {
+    for(String inlinePrefix : INLINE_PREFIXES) {
+      if(inlinePrefix.equals(prefix))
+        return true;
+    }
+    return false;
+  }
+
+  private static String name(String key, String prefix) {
+    if(prefix == null)
+      return key;
+    return key + "." + prefix;
+  }
+
+  private static String keyOf(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot <= name.lastIndexOf('/') ? name : name.substring(0, dot);
+  }
+
+  private static String prefixOf(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot <= name.lastIndexOf('/') ? null : name.substring(dot + 1);
+  }
+
+  private static String placeholders(int count) {
+    StringBuilder sb = new StringBuilder();
+    for(int i=0; i<count; i++) {
+      if(i > 0)
+        sb.append(',');
+      sb.append('?');
+    }
+    return sb.toString();
+  }
+}
@@ -6,6 +6,7 @@ import com.diventi.eldia.R;
 import com.diventi.mobipaper.BaseActivity;
 import com.diventi.mobipaper.BaseWebView;
 import com.diventi.mobipaper.ScreenManager;
+import com.diventi.mobipaper.cache.DiskCache;
 import com.diventi.mobipaper.ui.ToolbarProvider;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -50,13 +51,18 @@ public class ClassifiedActivity extends BaseActivity implements OnClickListener
       try {
         mUrl = getIntent().getExtras().getString("url");
         
-        if( mScreenManager.classifiedExists(mUrl) ) {
-          onUrlLoaded(mUrl, true, null, ScreenManager.CLASSIFIED_PREFIX, false);
-          return;
-        }
-        
-        showLoading(true);
-        loadClassified(mUrl, false, false);
+        track(mScreenManager.classifiedExists(mUrl, new DiskCache.Callback<Boolean>() {
+          @Override
+          public void onResult(Boolean exists) {
+            if( exists != null && exists ) {
+              onUrlLoaded(mUrl, true, null, ScreenManager.CLASSIFIED_PREFIX, false);
+              return;
+            }
+            
+            showLoading(true);
+            loadClassified(mUrl, false, false);
+          }
+        }));
         
       } catch (Exception ex) {
         showAlert("No se puede mostrar clasificado", ex);
@@ -155,7 +161,7 @@ public class ClassifiedActivity extends BaseActivity implements OnClickListener
     }
     
     @Override
-    protected void onUrlLoaded(String url, boolean useCache, Exception loadError, String prefix, boolean fromUser) {
+    protected void onUrlLoaded(final String url, boolean useCache, Exception loadError, String prefix, boolean fromUser) {
 
       mFromUser = fromUser;
       
@@ -165,8 +171,14 @@ public class ClassifiedActivity extends BaseActivity implements OnClickListener
         loadWebView(url, useCache, prefix, fromUser);
         
         //Mandamos a refrescar si vino de cache y es viejo
-        if(useCache == true && isOldThanSeconds(mScreenManager.classifiedDate(url), 86400) ) {
-          loadClassified(url, false, false);
+        if(useCache == true) {
+          track(mScreenManager.classifiedDate(url, new DiskCache.Callback<Long>() {
+            @Override
+            public void onResult(Long date) {
+              if( date != null && isOldThanSeconds(date, 86400) )
+                loadClassified(url, false, false);
+            }
+          }));
         }
         
         return;
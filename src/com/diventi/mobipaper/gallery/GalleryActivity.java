@@ -1,5 +1,7 @@
 package com.diventi.mobipaper.gallery;
 
+import java.util.concurrent.Callable;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -16,6 +18,7 @@ import com.diventi.mobipaper.BaseActivity;
 import com.diventi.mobipaper.ScreenManager;
 import com.diventi.mobipaper.cache.DiskCache;
 import com.diventi.eldia.R;
+import com.diventi.utils.HttpTransport;
 import com.diventi.utils.SHA1;
 import com.loopj.android.http.AsyncHttpClient;
 import com.loopj.android.http.BinaryHttpResponseHandler;
@@ -27,7 +30,7 @@ public class GalleryActivity extends BaseActivity {
   
   private ViewPager       mImagePager;
   private TextView        mCurrentImage;
-  private AsyncHttpClient mClient = new AsyncHttpClient();
+  private AsyncHttpClient mClient = HttpTransport.getInstance().getClient();
   private String[]        mUrls;
   
   @Override
@@ -118,7 +121,19 @@ public class GalleryActivity extends BaseActivity {
       final DiskCache cache = DiskCache.getInstance();
       final String    key   = mUrls[position]; //SHA1.sha1(mUrls[position]); 
       
-      if( !cache.exists(key, ScreenManager.IMAGE_PREFIX) ) {
+      track(cache.execute(new Callable<Bitmap>() {
+        public Bitmap call() {
+          if( !cache.exists(key, ScreenManager.IMAGE_PREFIX) )
+            return null;
+          
+          return bitmapFromByteArray(cache.get(key, ScreenManager.IMAGE_PREFIX));
+        }
+      }, new DiskCache.Callback<Bitmap>() {
+        public void onResult(Bitmap bitmap) {
+          if(bitmap != null)
+            remoteImage.setRemoteImage(bitmap);
+        }
+      }));
 
 //        mClient.get(mUrls[position], new BinaryHttpResponseHandler() {
 //
@@ -144,10 +159,6 @@ public class GalleryActivity extends BaseActivity {
 //          }
 //          
 //        });
-        
-      } else {
-        remoteImage.setRemoteImage(bitmapFromByteArray(cache.get(key, ScreenManager.IMAGE_PREFIX)));
-      }
       
       ((ViewPager) collection).addView(remoteImage,0);
       return remoteImage;
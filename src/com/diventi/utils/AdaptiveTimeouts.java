@@ -0,0 +1,120 @@
+package com.diventi.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+//Connect and read timeouts learned from the latencies seen on each network class
+//(connection type:quality). A timeout is a few times the class' p99, within fixed bounds,
+//so a request only gives up once it is clearly slower than what that network usually does.
+//Until a class has enough samples the timeouts come from its quality alone.
+//The p95 time to first byte is also the point where a late request is worth hedging.
+public class AdaptiveTimeouts {
+
+  private static final int    MIN_SAMPLES = 8;
+  private static final int    WINDOW      = 200; //samples before starting a new histogram
+  private static final double P99_FACTOR  = 3.0;
+
+  private static final int MIN_CONNECT = 3*1000,  MAX_CONNECT = 30*1000;
+  private static final int MIN_READ    = 5*1000,  MAX_READ    = 60*1000;
+
+  private static AdaptiveTimeouts mInstance = new AdaptiveTimeouts();
+
+  public static AdaptiveTimeouts getInstance() {
+    return mInstance;
+  }
+
+  //Recent samples go to current; previous answers until current has MIN_SAMPLES
+  private static class Latencies {
+    Histogram connect = new Histogram(), firstByte = new Histogram();
+    Histogram previousConnect, previousFirstByte;
+
+    void record(long connectMs, long firstByteMs) {
+      if(firstByte.count() >= WINDOW) {
+        previousConnect   = connect;
+        previousFirstByte = firstByte;
+        connect   = new Histogram();
+        firstByte = new Histogram();
+      }
+
+      if(connectMs >= 0)
+        connect.record(connectMs);
+      firstByte.record(firstByteMs);
+    }
+
+    //-1 if there are not enough samples
+    long percentile(boolean ofConnect, double p) {
+      Histogram current  = ofConnect ? connect : firstByte;
+      Histogram previous = ofConnect ? previousConnect : previousFirstByte;
+
+      if(current.count() >= MIN_SAMPLES)
+        return current.percentile(p);
+      if(previous != null && previous.count() >= MIN_SAMPLES)
+        return previous.percentile(p);
+      return -1;
+    }
+  }
+
+  private final Map<String, Latencies> mLatencies = new HashMap<String, Latencies>();
+
+  private AdaptiveTimeouts() {
+  }
+
+  //connectMs -1 when a pooled connection was reused
+  public synchronized void record(String type, String quality, long connectMs, long firstByteMs) {
+    String key = type + ":" + quality;
+    Latencies latencies = mLatencies.get(key);
+    if(latencies == null) {
+      latencies = new Latencies();
+      mLatencies.put(key, latencies);
+    }
+    latencies.record(connectMs, firstByteMs);
+  }
+
+  public synchronized int connectTimeout(String type, String quality) {
+    long p99 = percentile(type, quality, true, 0.99);
+    if(p99 < 0)
+      return defaultConnectTimeout(quality);
+
+    return clamp(p99 * P99_FACTOR, MIN_CONNECT, MAX_CONNECT);
+  }
+
+  public synchronized int readTimeout(String type, String quality) {
+    long p99 = percentile(type, quality, false, 0.99);
+    if(p99 < 0)
+      return defaultReadTimeout(quality);
+
+    return clamp(p99 * P99_FACTOR, MIN_READ, MAX_READ);
+  }
+
+  //p95 time to first byte, -1 while unknown (don't hedge blindly)
+  public synchronized long hedgeDelay(String type, String quality) {
+    return percentile(type, quality, false, 0.95);
+  }
+
+  //Before anything was learned: a slow link needs more time before giving up,
+  //a fast one shouldn't wait as long on a dead server
+  public static int defaultConnectTimeout(String quality) {
+    if(NetworkQuality.POOR.equals(quality))
+      return 15*1000;
+    if(NetworkQuality.GOOD.equals(quality) || NetworkQuality.EXCELLENT.equals(quality))
+      return 6*1000;
+    return 10*1000;
+  }
+
+  public static int defaultReadTimeout(String quality) {
+    if(NetworkQuality.POOR.equals(quality))
+      return 40*1000;
+    if(NetworkQuality.GOOD.equals(quality) || NetworkQuality.EXCELLENT.equals(quality))
+      return 15*1000;
+    return 20*1000;
+  }
+
+  private long percentile(String type, String quality, boolean ofConnect, double p) {
+    Latencies latencies = mLatencies.get(type + ":" + quality);
+    return latencies != null ? latencies.percentile(ofConnect, p) : -1;
+  }
+
+  private static int clamp(double value, int min, int max) {
+    return (int)Math.max(min, Math.min(max, Math.round(value)));
+  }
+}
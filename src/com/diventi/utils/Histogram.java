@@ -0,0 +1,82 @@
+package com.diventi.utils;
+
+import java.util.Locale;
+
+//Distribution of non negative values (ms, bytes...) in constant memory: values are counted
+//in power of two buckets, so percentiles are estimates within a factor of two of the bucket,
+//interpolated inside it. Count, sum, min and max are exact.
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final long[] mBuckets = new long[BUCKETS];
+  private long mCount;
+  private long mSum;
+  private long mMin = Long.MAX_VALUE;
+  private long mMax = Long.MIN_VALUE;
+
+  public synchronized void record(long value) {
+    if(value < 0)
+      value = 0;
+
+    mBuckets[bucketOf(value)]++;
+    mCount++;
+    mSum += value;
+    mMin = Math.min(mMin, value);
+    mMax = Math.max(mMax, value);
+  }
+
+  public synchronized long count() {
+    return mCount;
+  }
+
+  public synchronized long sum() {
+    return mSum;
+  }
+
+  public synchronized long min() {
+    return mCount == 0 ? 0 : mMin;
+  }
+
+  public synchronized long max() {
+    return mCount == 0 ? 0 : mMax;
+  }
+
+  public synchronized double mean() {
+    return mCount == 0 ? 0 : (double)mSum / mCount;
+  }
+
+  //p in [0, 1], ie: 0.5 for the median
+  public synchronized long percentile(double p) {
+    if(mCount == 0)
+      return 0;
+
+    double rank = Math.max(1, Math.ceil(p * mCount));
+    long seen = 0;
+    for(int i=0; i<BUCKETS; i++) {
+      if(mBuckets[i] == 0)
+        continue;
+
+      if(seen + mBuckets[i] >= rank) {
+        long low  = i == 0 ? 0 : 1L << (i - 1);
+        long high = i == 0 ? 0 : (1L << i) - 1;
+        double within = (rank - seen) / mBuckets[i];
+        long value = low + Math.round((high - low) * within);
+        return Math.max(mMin, Math.min(mMax, value));
+      }
+      seen += mBuckets[i];
+    }
+    return mMax;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.US, "n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+        mCount, mean(), percentile(0.5), percentile(0.9), percentile(0.99), max());
+  }
+
+  //0 for 0, otherwise 1 + the position of the highest bit: [2^(i-1), 2^i - 1]
+  private static int bucketOf(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+}
@@ -0,0 +1,79 @@
+package com.diventi.utils;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.diventi.mobipaper.cache.DiskHttpCacheStorage;
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.ConnectivityChecker;
+
+//Process wide http client. Screens (sync) and images (async) share its connection pool
+//so warm keep-alive connections to the server are reused between navigations.
+public class HttpTransport {
+
+  public static final String SERVER_HOST = "www.diariosmoviles.com.ar";
+
+  private static final int SERVER_MAX_CONNECTIONS = 4;
+
+  private static HttpTransport mInstance = new HttpTransport();
+
+  public static HttpTransport getInstance() {
+    return mInstance;
+  }
+
+  private final AsyncHttpClient mClient;
+
+  private HttpTransport() {
+    mClient = new AsyncHttpClient();
+    applyTimeouts(NetworkQuality.UNKNOWN);
+    //Same host (no explicit port) the route planner builds from our urls, or the limit isn't found
+    mClient.setMaxConnectionsPerRoute(new HttpHost(SERVER_HOST), SERVER_MAX_CONNECTIONS);
+
+    //Connect times for ScreenMetrics
+    mClient.getHttpClient().getConnectionManager().getSchemeRegistry().register(
+        new Scheme("http", new TimingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+    
+    mClient.setCacheStorage(new DiskHttpCacheStorage());
+    
+    //Don't keep retrying while offline
+    mClient.setConnectivityChecker(new ConnectivityChecker() {
+      public boolean isConnected() {
+        return Network.hasConnection();
+      }
+    });
+
+    NetworkQuality.getInstance().addListener(new NetworkQuality.Listener() {
+      public void onQualityChanged(String quality) {
+        applyTimeouts(quality);
+      }
+    });
+  }
+
+  //Client wide timeouts follow the quality of the link; /ws/screen sets its own learned ones per request
+  private void applyTimeouts(String quality) {
+    mClient.setConnectTimeout(AdaptiveTimeouts.defaultConnectTimeout(quality));
+    mClient.setReadTimeout(AdaptiveTimeouts.defaultReadTimeout(quality));
+  }
+
+  public AsyncHttpClient getClient() {
+    return mClient;
+  }
+
+  //Blocking request on the caller thread. The caller must consume or close the response
+  //entity (or abort the request) so the connection goes back to the pool.
+  //Each request gets its own context: HttpClient keeps the request being run and whether it was
+  //sent there, and the async requests' retry logic reads those from the shared one.
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    HttpContext context = new BasicHttpContext();
+    context.setAttribute(ClientContext.COOKIE_STORE, mClient.getHttpContext().getAttribute(ClientContext.COOKIE_STORE));
+    return mClient.getHttpClient().execute(request, context);
+  }
+}
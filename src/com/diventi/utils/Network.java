@@ -2,52 +2,84 @@ package com.diventi.utils;
 
 import com.diventi.mobipaper.MobiPaperApp;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 
+//Connectivity state is read once and then kept up to date by the CONNECTIVITY_ACTION
+//broadcast, so the checks made before every request don't query ConnectivityManager.
 public class Network {
 
+  private static volatile boolean mRegistered;
+  private static volatile boolean mConnected;
+  private static volatile String  mType = "nones2";
+
+  private static final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      refresh();
+    }
+  };
+
   public static boolean hasConnection() {
+    ensureRegistered();
+    return mConnected;
+  }
+
+  public static String connectionType() {
+    ensureRegistered();
+    return mType;
+  }
+
+  //Bandwidth class measured on the current connection, see NetworkQuality
+  public static String quality() {
+    return NetworkQuality.getInstance().getQuality();
+  }
+
+  private static void ensureRegistered() {
+    if(mRegistered)
+      return;
+
+    synchronized(Network.class) {
+      if(mRegistered)
+        return;
+
+      refresh();
+      MobiPaperApp.getContext().registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+      mRegistered = true;
+    }
+  }
+
+  private static synchronized void refresh() {
     ConnectivityManager connManager = (ConnectivityManager)MobiPaperApp.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-    
+
+    String type;
     if(connManager == null)
-      return false;
-    
-    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-    NetworkInfo mobile = connManager.getNetworkInfo(ConnectivityManager.TYPE_MOBILE);
+      type = "nones1";
+    else if(networkIsAvailable(connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI)))
+      type = "wifi";
+    else if(networkIsAvailable(connManager.getNetworkInfo(ConnectivityManager.TYPE_MOBILE)))
+      type = "mobile";
+    else
+      type = "nones2";
 
-    if (!networkIsAvailable(wifi) && !networkIsAvailable(mobile)) {
-        return false;
-    }
-    
-    return true;
+    boolean changed = !type.equals(mType);
+    mConnected = type.equals("wifi") || type.equals("mobile");
+    mType      = type;
+
+    if(changed)
+      NetworkQuality.getInstance().reset();
   }
-  
+
   private static boolean networkIsAvailable(NetworkInfo info) {
 
     if(info != null)
       return info.isAvailable();
-    
+
     return false;
   }
-   
-  public static String connectionType() {
-
-    ConnectivityManager connManager = (ConnectivityManager)MobiPaperApp.getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-    
-    if(connManager == null)
-      return "nones1";
-    
-    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-    if(networkIsAvailable(wifi))
-      return "wifi";
-
-    NetworkInfo mobile = connManager.getNetworkInfo(ConnectivityManager.TYPE_MOBILE);
-    if(networkIsAvailable(mobile))
-      return "mobile";
 
-    return "nones2";
-  }
-  
 }
@@ -0,0 +1,123 @@
+package com.diventi.utils;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//Estimates how good the current connection really is from the transfers the app makes:
+//throughput of downloads and round trip time of new connections, each smoothed with an
+//exponential moving average. The result is a bandwidth class, so that a weak wifi can be
+//treated as worse than a good mobile connection. The estimate starts over when the
+//connection type changes.
+public class NetworkQuality {
+
+  public static final String UNKNOWN   = "unknown";
+  public static final String POOR      = "poor";      //   < 150 kbps or rtt > 1.5 s
+  public static final String MODERATE  = "moderate";  //   < 550 kbps
+  public static final String GOOD      = "good";      //  < 2000 kbps
+  public static final String EXCELLENT = "excellent";
+
+  private static final double ALPHA            = 0.3;
+  private static final long   MIN_SAMPLE_BYTES = 16*1024; //smaller bodies measure latency, not bandwidth
+  private static final long   MIN_SAMPLE_MS    = 10;
+  private static final long   POOR_RTT_MS      = 1500;
+
+  public interface Listener {
+    void onQualityChanged(String quality);
+  }
+
+  private static NetworkQuality mInstance = new NetworkQuality();
+
+  public static NetworkQuality getInstance() {
+    return mInstance;
+  }
+
+  private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+  private double mKbps  = -1;
+  private double mRttMs = -1;
+  private String mQuality = UNKNOWN;
+
+  private NetworkQuality() {
+  }
+
+  public void addListener(Listener listener) {
+    mListeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    mListeners.remove(listener);
+  }
+
+  //bytes read in ms (time spent reading the body, not waiting for the first byte)
+  public void addThroughputSample(long bytes, long ms) {
+    if(bytes < MIN_SAMPLE_BYTES || ms < MIN_SAMPLE_MS)
+      return;
+
+    double kbps = bytes * 8.0 / ms;
+    synchronized(this) {
+      mKbps = mKbps < 0 ? kbps : ALPHA * kbps + (1 - ALPHA) * mKbps;
+    }
+    update();
+  }
+
+  //Time it took to open a connection, about one round trip
+  public void addRttSample(long ms) {
+    if(ms < 0)
+      return;
+
+    synchronized(this) {
+      mRttMs = mRttMs < 0 ? ms : ALPHA * ms + (1 - ALPHA) * mRttMs;
+    }
+    update();
+  }
+
+  //Called by Network when the connection type changes: what we measured no longer applies
+  public void reset() {
+    synchronized(this) {
+      mKbps  = -1;
+      mRttMs = -1;
+    }
+    update();
+  }
+
+  public synchronized String getQuality() {
+    return mQuality;
+  }
+
+  //-1 if unknown
+  public synchronized long getBandwidthKbps() {
+    return Math.round(mKbps);
+  }
+
+  //-1 if unknown
+  public synchronized long getRttMs() {
+    return Math.round(mRttMs);
+  }
+
+  private void update() {
+    String quality;
+    synchronized(this) {
+      quality = classify(mKbps, mRttMs);
+      if(quality.equals(mQuality))
+        return;
+      mQuality = quality;
+    }
+
+    for(Listener listener : mListeners)
+      listener.onQualityChanged(quality);
+  }
+
+  private static String classify(double kbps, double rttMs) {
+    if(rttMs > POOR_RTT_MS)
+      return POOR;
+
+    if(kbps < 0)
+      return UNKNOWN;
+    if(kbps < 150)
+      return POOR;
+    if(kbps < 550)
+      return MODERATE;
+    if(kbps < 2000)
+      return GOOD;
+    return EXCELLENT;
+  }
+}
@@ -5,49 +5,62 @@ import java.security.NoSuchAlgorithmException;
 
 public class SHA1 {
 
+  private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+  
+  //MessageDigest.getInstance is expensive and instances are not thread safe
+  private static final ThreadLocal<MessageDigest> mDigest = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+        return null;
+      }
+    }
+  };
+  
   public static String sha1(String data) {
-    MessageDigest digest;
-    try {
-      digest = MessageDigest.getInstance("SHA-1");
-    } catch (NoSuchAlgorithmException e) {
+    byte[] hash = digest(data.getBytes());
+    if(hash == null)
       return data;
-    }
     
-    digest.update(data.getBytes());
-    
-    byte[] hash = digest.digest();
-    String encodedHash = encodeHex(hash);
-    
-    return encodedHash;
+    return encodeHex(hash);
   }
 
   public static String sha1(byte[] data) {
-    MessageDigest digest;
-    try {
-      digest = MessageDigest.getInstance("SHA-1");
-    } catch (NoSuchAlgorithmException e) {
+    byte[] hash = digest(data);
+    if(hash == null)
       return "x-men";
-    }
-    
-    digest.update(data);
     
-    byte[] hash = digest.digest();
-    String encodedHash = encodeHex(hash);
-    
-    return encodedHash;
+    return encodeHex(hash);
+  }
+
+  //This thread's digest, reset, for hashing a stream. Null if SHA-1 is not available.
+  public static MessageDigest getDigest() {
+    MessageDigest digest = mDigest.get();
+    if(digest != null)
+      digest.reset();
+    return digest;
   }
 
+  public static byte[] digest(byte[] data) {
+    MessageDigest digest = mDigest.get();
+    if(digest == null)
+      return null;
+    
+    digest.reset();
+    return digest.digest(data);
+  }
   
-  private static String encodeHex(byte[] bytes) {
-    StringBuffer hex = new StringBuffer(bytes.length * 2);
+  public static String encodeHex(byte[] bytes) {
+    char[] hex = new char[bytes.length * 2];
 
     for (int i = 0; i < bytes.length; i++) {
-        if (((int) bytes[i] & 0xff) < 0x10) {
-            hex.append("0");
-        }
-        hex.append(Integer.toString((int) bytes[i] & 0xff, 16));
+        int v = bytes[i] & 0xff;
+        hex[i*2]   = HEX_CHARS[v >>> 4];
+        hex[i*2+1] = HEX_CHARS[v & 0x0f];
     }
 
-    return hex.toString();
-}
+    return new String(hex);
+  }
 }
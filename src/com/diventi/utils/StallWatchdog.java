@@ -0,0 +1,198 @@
+package com.diventi.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+//Opt-in main thread watchdog. A background thread keeps posting a tick to the main Looper
+//and measures how long each one waits to run (message latency). While a tick is late by
+//more than the threshold the main thread stack is sampled; when it finally runs the stall
+//is filed under the app frame seen most in the samples. The report (latency distribution
+//plus stalls by frame, worst first) is rewritten after every stall.
+public class StallWatchdog {
+
+  private static final String TAG = "StallWatchdog";
+
+  private static final long TICK_INTERVAL   = 100;
+  private static final long SAMPLE_INTERVAL = 50;
+  private static final int  STACK_DEPTH     = 12;
+
+  private static final String[] APP_PACKAGES = new String[] {"com.diventi.", "com.loopj."};
+
+  private static StallWatchdog mInstance;
+
+  private final long    mThreshold;
+  private final File    mReport;
+  private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+  private final Thread  mMainThread  = Looper.getMainLooper().getThread();
+
+  private final Histogram mLatency = new Histogram();
+  private final Map<String, Stall> mStalls = new HashMap<String, Stall>();
+
+  private volatile long mTickRanAt;
+
+  //Starts the watchdog once per process; stalls longer than thresholdMs are reported to report
+  public static synchronized void start(long thresholdMs, File report) {
+    if(mInstance != null)
+      return;
+
+    mInstance = new StallWatchdog(thresholdMs, report);
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        mInstance.loop();
+      }
+    }, TAG);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  //Null unless started
+  public static StallWatchdog getInstance() {
+    return mInstance;
+  }
+
+  private static class Stall {
+    final String frame;
+    final Histogram durations = new Histogram();
+    StackTraceElement[] example;
+
+    Stall(String frame) {
+      this.frame = frame;
+    }
+  }
+
+  private StallWatchdog(long thresholdMs, File report) {
+    mThreshold = thresholdMs;
+    mReport    = report;
+  }
+
+  private final Runnable mTick = new Runnable() {
+    public void run() {
+      mTickRanAt = System.nanoTime();
+    }
+  };
+
+  private void loop() {
+    while(true) {
+      try {
+        Thread.sleep(TICK_INTERVAL);
+        tick();
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void tick() throws InterruptedException {
+    mTickRanAt = 0;
+    long postedAt = System.nanoTime();
+    mMainHandler.post(mTick);
+
+    //frame -> samples, only filled once the tick is late
+    Map<String, Integer> frames = new HashMap<String, Integer>();
+    StackTraceElement[] example = null;
+
+    while(mTickRanAt == 0) {
+      Thread.sleep(SAMPLE_INTERVAL);
+      if(mTickRanAt != 0 || (System.nanoTime() - postedAt) / 1000000 < mThreshold)
+        continue;
+
+      StackTraceElement[] stack = mMainThread.getStackTrace();
+      String frame = appFrame(stack);
+      Integer seen = frames.get(frame);
+      frames.put(frame, seen != null ? seen + 1 : 1);
+      if(example == null || frame.equals(mostSeen(frames)))
+        example = stack;
+    }
+
+    long latency = (mTickRanAt - postedAt) / 1000000;
+    mLatency.record(latency);
+
+    if(latency < mThreshold || frames.isEmpty())
+      return;
+
+    String frame = mostSeen(frames);
+    synchronized(this) {
+      Stall stall = mStalls.get(frame);
+      if(stall == null) {
+        stall = new Stall(frame);
+        mStalls.put(frame, stall);
+      }
+      stall.durations.record(latency);
+      stall.example = example;
+    }
+
+    Log.w(TAG, String.format(Locale.US, "main thread stalled %d ms at %s", latency, frame));
+    writeReport();
+  }
+
+  public String report() {
+    List<Stall> stalls;
+    synchronized(this) {
+      stalls = new ArrayList<Stall>(mStalls.values());
+    }
+
+    Collections.sort(stalls, new Comparator<Stall>() {
+      public int compare(Stall a, Stall b) {
+        long ta = a.durations.sum(), tb = b.durations.sum();
+        return ta > tb ? -1 : (ta == tb ? 0 : 1);
+      }
+    });
+
+    StringBuilder out = new StringBuilder();
+    out.append("main looper latency ms: ").append(mLatency).append('\n');
+    out.append("stalls over ").append(mThreshold).append(" ms by frame:\n");
+    for(Stall stall : stalls) {
+      out.append('\n').append(stall.frame).append('\n');
+      out.append("  ms: ").append(stall.durations).append('\n');
+
+      StackTraceElement[] example = stall.example;
+      for(int i=0; example != null && i<example.length && i<STACK_DEPTH; i++)
+        out.append("    at ").append(example[i]).append('\n');
+    }
+    return out.toString();
+  }
+
+  private void writeReport() {
+    try {
+      FileUtils.writeStringToFile(mReport, report(), "utf-8");
+    } catch (IOException e) {
+      Log.w(TAG, "unable to write " + mReport, e);
+    }
+  }
+
+  //First frame of our own code, so stalls inside framework calls are filed under their caller
+  private static String appFrame(StackTraceElement[] stack) {
+    for(StackTraceElement element : stack) {
+      for(String pkg : APP_PACKAGES) {
+        if(element.getClassName().startsWith(pkg))
+          return element.toString();
+      }
+    }
+    return stack.length > 0 ? stack[0].toString() : "?";
+  }
+
+  private static String mostSeen(Map<String, Integer> frames) {
+    String best = null;
+    int count = 0;
+    for(Map.Entry<String, Integer> entry : frames.entrySet()) {
+      if(entry.getValue() > count) {
+        best  = entry.getKey();
+        count = entry.getValue();
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,124 @@
+package com.diventi.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+import android.util.Log;
+
+//Runs the application's startup steps and records how long each one took.
+//Steps the first screen doesn't need run in parallel off the main thread (background),
+//optional ones run the first time somebody asks for their value (Lazy).
+public class Startup {
+
+  private static final String TAG     = "Startup";
+  private static final int    THREADS = 2;
+
+  private final Map<String, Future<?>> mSteps   = new LinkedHashMap<String, Future<?>>();
+  private final Map<String, Long>      mTimings = new LinkedHashMap<String, Long>();
+
+  private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+    public Thread newThread(final Runnable r) {
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          //Below the main thread, which is drawing the first frame meanwhile
+          Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+          r.run();
+        }
+      }, "Startup");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  //Runs step on the calling thread
+  public void run(String name, Runnable step) {
+    long start = System.nanoTime();
+    step.run();
+    record(name, start);
+  }
+
+  //Runs step off the calling thread, await(name) waits for it
+  public synchronized void background(final String name, final Runnable step) {
+    mSteps.put(name, mExecutor.submit(new Runnable() {
+      public void run() {
+        Startup.this.run(name, step);
+      }
+    }));
+  }
+
+  //Waits for a background step, returns at once if there is no such step or it is done
+  public void await(String name) {
+    Future<?> step;
+    synchronized(this) {
+      step = mSteps.get(name);
+    }
+
+    if(step == null)
+      return;
+
+    try {
+      step.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      Log.e(TAG, name + " failed", e.getCause());
+    }
+  }
+
+  //No more background steps will be added; the threads end when the queued ones are done
+  public void finish() {
+    mExecutor.shutdown();
+  }
+
+  //Step name -> milliseconds it took, in the order they finished
+  public synchronized Map<String, Long> getTimings() {
+    return new LinkedHashMap<String, Long>(mTimings);
+  }
+
+  private void record(String name, long start) {
+    long took = (System.nanoTime() - start) / 1000000;
+
+    synchronized(this) {
+      mTimings.put(name, took);
+    }
+    Trace.span("startup." + name, start);
+  }
+
+  //A value computed the first time it is asked for, timed as a step of startup
+  public static abstract class Lazy<T> {
+
+    private final Startup mStartup;
+    private final String  mName;
+
+    private volatile boolean mDone;
+    private T mValue;
+
+    public Lazy(Startup startup, String name) {
+      mStartup = startup;
+      mName    = name;
+    }
+
+    protected abstract T create();
+
+    public T get() {
+      if(mDone)
+        return mValue;
+
+      synchronized(this) {
+        if(!mDone) {
+          long start = System.nanoTime();
+          mValue = create();
+          mStartup.record(mName, start);
+          mDone = true;
+        }
+      }
+      return mValue;
+    }
+  }
+}
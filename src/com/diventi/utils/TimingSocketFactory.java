@@ -0,0 +1,50 @@
+package com.diventi.utils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpParams;
+
+//Wraps a SocketFactory to measure how long opening each connection takes. The connection
+//manager connects on the thread that executes the request, so the time is kept per thread
+//until that thread asks for it.
+public class TimingSocketFactory implements SocketFactory {
+
+  private static final ThreadLocal<Long> mConnectTime = new ThreadLocal<Long>();
+
+  private final SocketFactory mFactory;
+
+  public TimingSocketFactory(SocketFactory factory) {
+    mFactory = factory;
+  }
+
+  //ms the last connection opened by this thread took, -1 if it opened none (pooled
+  //connection reused) since the last call
+  public static long takeConnectTime() {
+    Long time = mConnectTime.get();
+    mConnectTime.set(null);
+    return time != null ? time : -1;
+  }
+
+  public Socket createSocket() throws IOException {
+    return mFactory.createSocket();
+  }
+
+  public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort, HttpParams params)
+      throws IOException, UnknownHostException, ConnectTimeoutException {
+    long start = System.nanoTime();
+    try {
+      return mFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+    } finally {
+      mConnectTime.set((System.nanoTime() - start) / 1000000);
+    }
+  }
+
+  public boolean isSecure(Socket sock) throws IllegalArgumentException {
+    return mFactory.isSecure(sock);
+  }
+}
@@ -0,0 +1,120 @@
+package com.diventi.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.commons.io.FileUtils;
+
+import android.os.Build;
+import android.util.Log;
+
+//Named spans and markers kept in memory to see where the time goes (ie: cold start).
+//Recording never locks: each event takes the next slot of a ring buffer, so only the
+//last CAPACITY events are kept. Times come from System.nanoTime (monotonic) and are
+//dumped relative to the moment this class was loaded, early in Application.onCreate.
+//
+//  long start = Trace.now();
+//  ...
+//  Trace.span("ws.screen", start);
+public class Trace {
+
+  private static final String TAG = "Trace";
+
+  private static final int  CAPACITY = 512; //power of two
+  private static final long ORIGIN   = System.nanoTime();
+
+  private static final AtomicReferenceArray<Event> mEvents = new AtomicReferenceArray<Event>(CAPACITY);
+  private static final AtomicLong    mNext       = new AtomicLong();
+  private static final AtomicBoolean mColdDumped = new AtomicBoolean();
+
+  public static class Event {
+    public final String name;
+    public final String thread;
+    public final long   start; //nanoTime
+    public final long   end;
+
+    Event(String name, String thread, long start, long end) {
+      this.name   = name;
+      this.thread = thread;
+      this.start  = start;
+      this.end    = end;
+    }
+  }
+
+  public static long now() {
+    return System.nanoTime();
+  }
+
+  //Records a span that started at start (a value of now()) and ends now
+  public static void span(String name, long start) {
+    record(new Event(name, Thread.currentThread().getName(), start, now()));
+  }
+
+  //Records an instant
+  public static void mark(String name) {
+    long now = now();
+    record(new Event(name, Thread.currentThread().getName(), now, now));
+  }
+
+  private static void record(Event event) {
+    int slot = (int)(mNext.getAndIncrement() & (CAPACITY - 1));
+    mEvents.set(slot, event);
+  }
+
+  //Recorded events, oldest start first
+  public static List<Event> events() {
+    List<Event> events = new ArrayList<Event>();
+    for(int i=0; i<CAPACITY; i++) {
+      Event event = mEvents.get(i);
+      if(event != null)
+        events.add(event);
+    }
+
+    Collections.sort(events, new Comparator<Event>() {
+      public int compare(Event a, Event b) {
+        return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+      }
+    });
+    return events;
+  }
+
+  //One line per event: start and duration in ms since ORIGIN, thread and name. The header tells
+  //which build and device it came from so dumps can be compared across releases.
+  public static void dump(File file, String version) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    lines.add(String.format(Locale.US, "# version=%s device=%s/%s sdk=%d", version, Build.MANUFACTURER, Build.MODEL, Build.VERSION.SDK_INT));
+    lines.add("# start_ms\tduration_ms\tthread\tname");
+
+    for(Event event : events()) {
+      lines.add(String.format(Locale.US, "%.1f\t%.1f\t%s\t%s", (event.start - ORIGIN) / 1e6, (event.end - event.start) / 1e6, event.thread, event.name));
+    }
+
+    FileUtils.writeLines(file, "utf-8", lines, "\n");
+  }
+
+  //Dumps in the background, only the first time it's called in this process
+  public static void dumpColdStart(final File file, final String version) {
+    if(!mColdDumped.compareAndSet(false, true))
+      return;
+
+    Thread t = new Thread("Trace-dump") {
+      public void run() {
+        try {
+          dump(file, version);
+        } catch (IOException e) {
+          Log.w(TAG, "unable to write " + file, e);
+        }
+      }
+    };
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+}
@@ -22,18 +22,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
@@ -52,12 +56,14 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
@@ -92,6 +98,13 @@ import android.content.Context;
 public class AsyncHttpClient {
     private static final String VERSION = "1.4.1";
 
+    /** Priority for requests the user is waiting on, such as images of the screen being shown. */
+    public static final int PRIORITY_HIGH = 2;
+    /** Priority used when none is given. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Priority for prefetching and other background requests. */
+    public static final int PRIORITY_LOW = 0;
+
     private static final int DEFAULT_MAX_CONNECTIONS = 10;
     private static final int DEFAULT_SOCKET_TIMEOUT = 10 * 1000;
     private static final int DEFAULT_MAX_RETRIES = 5;
@@ -100,12 +113,25 @@ public class AsyncHttpClient {
     private static final String ENCODING_GZIP = "gzip";
 
     private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AsyncHttpClient retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private static int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
 
     private final DefaultHttpClient httpClient;
+    private final ConnPerRouteBean connPerRoute;
     private final HttpContext httpContext;
     private ThreadPoolExecutor threadPool;
-    private final Map<Context, List<WeakReference<Future<?>>>> requestMap;
+    private final RetryHandler retryHandler;
+    private ConnectivityChecker connectivityChecker;
+    private HttpCacheStorage cacheStorage;
+    private volatile boolean circuitBreakerEnabled = true;
+    private final Map<Context, List<WeakReference<RequestHandle>>> requestMap;
     private final Map<String, String> clientHeaderMap;
 
 
@@ -116,7 +142,8 @@ public class AsyncHttpClient {
         BasicHttpParams httpParams = new BasicHttpParams();
 
         ConnManagerParams.setTimeout(httpParams, socketTimeout);
-        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
+        connPerRoute = new ConnPerRouteBean(maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, connPerRoute);
         ConnManagerParams.setMaxTotalConnections(httpParams, DEFAULT_MAX_CONNECTIONS);
 
         HttpConnectionParams.setSoTimeout(httpParams, socketTimeout);
@@ -163,11 +190,15 @@ public class AsyncHttpClient {
             }
         });
 
-        httpClient.setHttpRequestRetryHandler(new RetryHandler(DEFAULT_MAX_RETRIES));
+        // Retries are handled by AsyncHttpRequest, which waits on a timer
+        // instead of sleeping inside HttpClient
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        retryHandler = new RetryHandler(DEFAULT_MAX_RETRIES);
 
-        threadPool = (ThreadPoolExecutor)Executors.newCachedThreadPool();
+        // More threads than connections would only block waiting for one
+        threadPool = new PriorityThreadPoolExecutor(DEFAULT_MAX_CONNECTIONS);
 
-        requestMap = new WeakHashMap<Context, List<WeakReference<Future<?>>>>();
+        requestMap = new WeakHashMap<Context, List<WeakReference<RequestHandle>>>();
         clientHeaderMap = new HashMap<String, String>();
     }
 
@@ -199,13 +230,46 @@ public class AsyncHttpClient {
 
     /**
      * Overrides the threadpool implementation used when queuing/pooling
-     * requests. By default, Executors.newCachedThreadPool() is used.
+     * requests. By default, a {@link PriorityThreadPoolExecutor} with one thread
+     * per connection is used. Request priorities are ignored by other executors.
      * @param threadPool an instance of {@link ThreadPoolExecutor} to use for queuing/pooling requests.
      */
     public void setThreadPool(ThreadPoolExecutor threadPool) {
         this.threadPool = threadPool;
     }
 
+    /**
+     * Sets the ConnectivityChecker consulted before retrying a failed
+     * request. Without one, requests are retried regardless of connectivity.
+     * @param connectivityChecker the checker to use, or null
+     */
+    public void setConnectivityChecker(ConnectivityChecker connectivityChecker) {
+        this.connectivityChecker = connectivityChecker;
+    }
+
+    /**
+     * Sets an optional HttpCacheStorage. With one set, GET responses are
+     * cached following their Cache-Control, Expires and validator headers:
+     * fresh entries are served without a request, stale ones are
+     * revalidated with a conditional request and served from the cache on
+     * a 304.
+     * @param cacheStorage the storage to use, or null to disable caching
+     */
+    public void setCacheStorage(HttpCacheStorage cacheStorage) {
+        this.cacheStorage = cacheStorage;
+    }
+
+    /**
+     * Enables or disables the per host {@link CircuitBreaker}, on by default.
+     * While a host's circuit is open its requests fail at once with a
+     * {@link CircuitOpenException}, or get the cached response if there is
+     * one, and are not retried.
+     * @param enabled whether requests go through the circuit breaker
+     */
+    public void setCircuitBreakerEnabled(boolean enabled) {
+        this.circuitBreakerEnabled = enabled;
+    }
+
     /**
      * Sets the User-Agent header to be sent with each request. By default,
      * "Android Asynchronous Http Client/VERSION (http://loopj.com/android-async-http/)" is used.
@@ -226,6 +290,38 @@ public class AsyncHttpClient {
         HttpConnectionParams.setConnectionTimeout(httpParams, timeout);
     }
 
+    /**
+     * Sets the socket (read) timeout and the time to wait for a pooled
+     * connection, leaving the connect timeout untouched.
+     * @param timeout the read timeout in milliseconds
+     */
+    public void setReadTimeout(int timeout){
+        final HttpParams httpParams = this.httpClient.getParams();
+        ConnManagerParams.setTimeout(httpParams, timeout);
+        HttpConnectionParams.setSoTimeout(httpParams, timeout);
+    }
+
+    /**
+     * Sets the time allowed to establish a connection, leaving the socket
+     * (read) timeout untouched.
+     * @param timeout the connect timeout in milliseconds
+     */
+    public void setConnectTimeout(int timeout){
+        HttpConnectionParams.setConnectionTimeout(this.httpClient.getParams(), timeout);
+    }
+
+    /**
+     * Sets the maximum number of pooled connections kept to a single host.
+     * Hosts without an explicit limit use the default of 10. The limit is
+     * read when the pool for the host is created, so set it before the
+     * first request to that host.
+     * @param host the host the limit applies to
+     * @param max the maximum number of connections to that host
+     */
+    public void setMaxConnectionsPerRoute(HttpHost host, int max) {
+        connPerRoute.setMaxForRoute(new HttpRoute(host), max);
+    }
+
     /**
      * Sets the SSLSocketFactory to user when making requests. By default,
      * a new, default SSLSocketFactory is used.
@@ -281,16 +377,19 @@ public class AsyncHttpClient {
      * @param mayInterruptIfRunning specifies if active requests should be cancelled along with pending requests.
      */
     public void cancelRequests(Context context, boolean mayInterruptIfRunning) {
-        List<WeakReference<Future<?>>> requestList = requestMap.get(context);
+        List<WeakReference<RequestHandle>> requestList;
+        synchronized(requestMap) {
+            requestList = requestMap.remove(context);
+        }
+
         if(requestList != null) {
-            for(WeakReference<Future<?>> requestRef : requestList) {
-                Future<?> request = requestRef.get();
+            for(WeakReference<RequestHandle> requestRef : requestList) {
+                RequestHandle request = requestRef.get();
                 if(request != null) {
                     request.cancel(mayInterruptIfRunning);
                 }
             }
         }
-        requestMap.remove(context);
     }
 
 
@@ -303,8 +402,8 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void get(String url, AsyncHttpResponseHandler responseHandler) {
-        get(null, url, null, responseHandler);
+    public RequestHandle get(String url, AsyncHttpResponseHandler responseHandler) {
+        return get(null, url, null, responseHandler);
     }
 
     /**
@@ -313,8 +412,8 @@ public class AsyncHttpClient {
      * @param params additional GET parameters to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void get(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        get(null, url, params, responseHandler);
+    public RequestHandle get(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return get(null, url, params, responseHandler);
     }
 
     /**
@@ -323,8 +422,8 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void get(Context context, String url, AsyncHttpResponseHandler responseHandler) {
-        get(context, url, null, responseHandler);
+    public RequestHandle get(Context context, String url, AsyncHttpResponseHandler responseHandler) {
+        return get(context, url, null, responseHandler);
     }
 
     /**
@@ -334,10 +433,35 @@ public class AsyncHttpClient {
      * @param params additional GET parameters to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void get(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        sendRequest(httpClient, httpContext, new HttpGet(getUrlWithQueryString(url, params)), null, responseHandler, context);
+    public RequestHandle get(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return sendRequest(httpClient, httpContext, new HttpGet(getUrlWithQueryString(url, params)), null, responseHandler, context, PRIORITY_NORMAL);
     }
     
+    /**
+     * Perform a HTTP GET request without any parameters, track the Android Context which initiated the request
+     * and queue it with the given priority.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param responseHandler the response handler instance that should handle the response.
+     * @param priority one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}.
+     */
+    public RequestHandle get(Context context, String url, AsyncHttpResponseHandler responseHandler, int priority) {
+        return get(context, url, null, responseHandler, priority);
+    }
+
+    /**
+     * Perform a HTTP GET request, track the Android Context which initiated the request and queue it with
+     * the given priority.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param params additional GET parameters to send with the request.
+     * @param responseHandler the response handler instance that should handle the response.
+     * @param priority one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}.
+     */
+    public RequestHandle get(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler, int priority) {
+        return sendRequest(httpClient, httpContext, new HttpGet(getUrlWithQueryString(url, params)), null, responseHandler, context, priority);
+    }
+
     /**
      * Perform a HTTP GET request and track the Android Context which initiated
      * the request with customized headers
@@ -348,11 +472,11 @@ public class AsyncHttpClient {
      * @param responseHandler the response handler instance that should handle
      *        the response.
      */
-    public void get(Context context, String url, Header[] headers, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+    public RequestHandle get(Context context, String url, Header[] headers, RequestParams params, AsyncHttpResponseHandler responseHandler) {
         HttpUriRequest request = new HttpGet(getUrlWithQueryString(url, params));
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, null, responseHandler,
-                context);
+        return sendRequest(httpClient, httpContext, request, null, responseHandler,
+                context, PRIORITY_NORMAL);
     }
 
 
@@ -365,8 +489,8 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void post(String url, AsyncHttpResponseHandler responseHandler) {
-        post(null, url, null, responseHandler);
+    public RequestHandle post(String url, AsyncHttpResponseHandler responseHandler) {
+        return post(null, url, null, responseHandler);
     }
 
     /**
@@ -375,8 +499,8 @@ public class AsyncHttpClient {
      * @param params additional POST parameters or files to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void post(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        post(null, url, params, responseHandler);
+    public RequestHandle post(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return post(null, url, params, responseHandler);
     }
 
     /**
@@ -386,8 +510,21 @@ public class AsyncHttpClient {
      * @param params additional POST parameters or files to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void post(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        post(context, url, paramsToEntity(params), null, responseHandler);
+    public RequestHandle post(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return post(context, url, paramsToEntity(params), null, responseHandler);
+    }
+
+    /**
+     * Perform a HTTP POST request, track the Android Context which initiated the request and queue it with
+     * the given priority.
+     * @param context the Android Context which initiated the request.
+     * @param url the URL to send the request to.
+     * @param params additional POST parameters or files to send with the request.
+     * @param responseHandler the response handler instance that should handle the response.
+     * @param priority one of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}.
+     */
+    public RequestHandle post(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler, int priority) {
+        return sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPost(url), paramsToEntity(params)), null, responseHandler, context, priority);
     }
 
     /**
@@ -398,8 +535,8 @@ public class AsyncHttpClient {
      * @param contentType the content type of the payload you are sending, for example application/json if sending a json payload.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void post(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
-        sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPost(url), entity), contentType, responseHandler, context);
+    public RequestHandle post(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
+        return sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPost(url), entity), contentType, responseHandler, context, PRIORITY_NORMAL);
     }
 
     /**
@@ -415,13 +552,13 @@ public class AsyncHttpClient {
      * @param responseHandler the response handler instance that should handle
      *        the response.
      */
-    public void post(Context context, String url, Header[] headers, RequestParams params, String contentType,
+    public RequestHandle post(Context context, String url, Header[] headers, RequestParams params, String contentType,
             AsyncHttpResponseHandler responseHandler) {
         HttpEntityEnclosingRequestBase request = new HttpPost(url);
         if(params != null) request.setEntity(paramsToEntity(params));
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, contentType,
-                responseHandler, context);
+        return sendRequest(httpClient, httpContext, request, contentType,
+                responseHandler, context, PRIORITY_NORMAL);
     }
 
     /**
@@ -439,11 +576,11 @@ public class AsyncHttpClient {
      * @param responseHandler the response handler instance that should handle
      *        the response.
      */
-    public void post(Context context, String url, Header[] headers, HttpEntity entity, String contentType,
+    public RequestHandle post(Context context, String url, Header[] headers, HttpEntity entity, String contentType,
             AsyncHttpResponseHandler responseHandler) {
         HttpEntityEnclosingRequestBase request = addEntityToRequestBase(new HttpPost(url), entity);
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, contentType, responseHandler, context);
+        return sendRequest(httpClient, httpContext, request, contentType, responseHandler, context, PRIORITY_NORMAL);
     }
 
     //
@@ -455,8 +592,8 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void put(String url, AsyncHttpResponseHandler responseHandler) {
-        put(null, url, null, responseHandler);
+    public RequestHandle put(String url, AsyncHttpResponseHandler responseHandler) {
+        return put(null, url, null, responseHandler);
     }
 
     /**
@@ -465,8 +602,8 @@ public class AsyncHttpClient {
      * @param params additional PUT parameters or files to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void put(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        put(null, url, params, responseHandler);
+    public RequestHandle put(String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return put(null, url, params, responseHandler);
     }
 
     /**
@@ -476,8 +613,8 @@ public class AsyncHttpClient {
      * @param params additional PUT parameters or files to send with the request.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void put(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
-        put(context, url, paramsToEntity(params), null, responseHandler);
+    public RequestHandle put(Context context, String url, RequestParams params, AsyncHttpResponseHandler responseHandler) {
+        return put(context, url, paramsToEntity(params), null, responseHandler);
     }
 
     /**
@@ -489,8 +626,8 @@ public class AsyncHttpClient {
      * @param contentType the content type of the payload you are sending, for example application/json if sending a json payload.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void put(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
-        sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPut(url), entity), contentType, responseHandler, context);
+    public RequestHandle put(Context context, String url, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
+        return sendRequest(httpClient, httpContext, addEntityToRequestBase(new HttpPut(url), entity), contentType, responseHandler, context, PRIORITY_NORMAL);
     }
     
     /**
@@ -503,10 +640,10 @@ public class AsyncHttpClient {
      * @param contentType the content type of the payload you are sending, for example application/json if sending a json payload.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void put(Context context, String url,Header[] headers, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
+    public RequestHandle put(Context context, String url,Header[] headers, HttpEntity entity, String contentType, AsyncHttpResponseHandler responseHandler) {
         HttpEntityEnclosingRequestBase request = addEntityToRequestBase(new HttpPut(url), entity);
         if(headers != null) request.setHeaders(headers);
-        sendRequest(httpClient, httpContext, request, contentType, responseHandler, context);
+        return sendRequest(httpClient, httpContext, request, contentType, responseHandler, context, PRIORITY_NORMAL);
     }
 
     //
@@ -518,8 +655,8 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void delete(String url, AsyncHttpResponseHandler responseHandler) {
-        delete(null, url, responseHandler);
+    public RequestHandle delete(String url, AsyncHttpResponseHandler responseHandler) {
+        return delete(null, url, responseHandler);
     }
 
     /**
@@ -528,9 +665,9 @@ public class AsyncHttpClient {
      * @param url the URL to send the request to.
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void delete(Context context, String url, AsyncHttpResponseHandler responseHandler) {
+    public RequestHandle delete(Context context, String url, AsyncHttpResponseHandler responseHandler) {
         final HttpDelete delete = new HttpDelete(url);
-        sendRequest(httpClient, httpContext, delete, null, responseHandler, context);
+        return sendRequest(httpClient, httpContext, delete, null, responseHandler, context, PRIORITY_NORMAL);
     }
     
     /**
@@ -540,33 +677,77 @@ public class AsyncHttpClient {
      * @param headers set one-time headers for this request
      * @param responseHandler the response handler instance that should handle the response.
      */
-    public void delete(Context context, String url, Header[] headers, AsyncHttpResponseHandler responseHandler) {
+    public RequestHandle delete(Context context, String url, Header[] headers, AsyncHttpResponseHandler responseHandler) {
         final HttpDelete delete = new HttpDelete(url);
         if(headers != null) delete.setHeaders(headers);
-        sendRequest(httpClient, httpContext, delete, null, responseHandler, context);
+        return sendRequest(httpClient, httpContext, delete, null, responseHandler, context, PRIORITY_NORMAL);
     }
 
 
     // Private stuff
-    private void sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, AsyncHttpResponseHandler responseHandler, Context context) {
+    private RequestHandle sendRequest(DefaultHttpClient client, HttpContext httpContext, HttpUriRequest uriRequest, String contentType, AsyncHttpResponseHandler responseHandler, Context context, int priority) {
         if(contentType != null) {
             uriRequest.addHeader("Content-Type", contentType);
         }
 
-        Future<?> request = threadPool.submit(new AsyncHttpRequest(client, httpContext, uriRequest, responseHandler));
+        AsyncHttpRequest request = new AsyncHttpRequest(this, client, httpContext, uriRequest, responseHandler, priority);
+        RequestHandle handle = request.getHandle();
 
         if(context != null) {
             // Add request to request map
-            List<WeakReference<Future<?>>> requestList = requestMap.get(context);
-            if(requestList == null) {
-                requestList = new LinkedList<WeakReference<Future<?>>>();
-                requestMap.put(context, requestList);
+            synchronized(requestMap) {
+                List<WeakReference<RequestHandle>> requestList = requestMap.get(context);
+                if(requestList == null) {
+                    requestList = new LinkedList<WeakReference<RequestHandle>>();
+                    requestMap.put(context, requestList);
+                }
+
+                // Drop requests that are done so long lived contexts don't pile them up
+                Iterator<WeakReference<RequestHandle>> iterator = requestList.iterator();
+                while(iterator.hasNext()) {
+                    RequestHandle previous = iterator.next().get();
+                    if(previous == null || previous.isFinished()) {
+                        iterator.remove();
+                    }
+                }
+
+                requestList.add(new WeakReference<RequestHandle>(handle));
             }
+        }
 
-            requestList.add(new WeakReference<Future<?>>(request));
+        threadPool.execute(request);
+        return handle;
+    }
 
-            // TODO: Remove dead weakrefs from requestLists?
+    RetryHandler getRetryHandler() {
+        return retryHandler;
+    }
+
+    HttpCacheStorage getCacheStorage() {
+        return cacheStorage;
+    }
+
+    // The breaker of the request's host, null when circuit breaking is off
+    CircuitBreaker getCircuitBreaker(HttpUriRequest request) {
+        String host = request.getURI().getHost();
+        if(!circuitBreakerEnabled || host == null) {
+            return null;
         }
+        return CircuitBreaker.forHost(host);
+    }
+
+    boolean isConnected() {
+        return connectivityChecker == null || connectivityChecker.isConnected();
+    }
+
+    // Runs request again on the thread pool once delay has passed. Nothing
+    // but the timer thread waits in between.
+    void retry(final AsyncHttpRequest request, long delay) {
+        retryScheduler.schedule(new Runnable() {
+            public void run() {
+                threadPool.execute(request);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
     public static String getUrlWithQueryString(String url, RequestParams params) {
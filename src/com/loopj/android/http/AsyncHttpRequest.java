@@ -18,47 +18,115 @@
 
 package com.loopj.android.http;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.protocol.HttpContext;
 
+import android.os.SystemClock;
+
 class AsyncHttpRequest implements Runnable {
+    private final AsyncHttpClient owner;
     private final AbstractHttpClient client;
     private final HttpContext context;
     private final HttpUriRequest request;
     private final AsyncHttpResponseHandler responseHandler;
+    private final int priority;
+    // Kept here so the handle (weakly referenced by the client) lives as long as the request
+    private final RequestHandle handle;
     private boolean isBinaryRequest;
     private int executionCount;
+    private long startTime;
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+    // Response waiting for its handler to save the body (see getKeptBody)
+    private HttpCacheEntry keptEntry;
 
-    public AsyncHttpRequest(AbstractHttpClient client, HttpContext context, HttpUriRequest request, AsyncHttpResponseHandler responseHandler) {
+    public AsyncHttpRequest(AsyncHttpClient owner, AbstractHttpClient client, HttpContext context, HttpUriRequest request, AsyncHttpResponseHandler responseHandler, int priority) {
+        this.owner = owner;
         this.client = client;
         this.context = context;
         this.request = request;
         this.responseHandler = responseHandler;
+        this.priority = priority;
+        this.handle = new RequestHandle(this);
         if(responseHandler instanceof BinaryHttpResponseHandler) {
             this.isBinaryRequest = true;
         }
     }
 
+    public RequestHandle getHandle() {
+        return handle;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized(this) {
+            if(finished || cancelled) {
+                return false;
+            }
+            cancelled = true;
+        }
+
+        if(responseHandler != null) {
+            responseHandler.setCancelled();
+        }
+
+        if(mayInterruptIfRunning) {
+            // closes the connection, so a blocked read or write fails right away
+            request.abort();
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
     public void run() {
-        try {
+        if(cancelled) {
+            finished = true;
+            return;
+        }
+
+        if(executionCount == 0) {
+            startTime = SystemClock.elapsedRealtime();
             if(responseHandler != null){
                 responseHandler.sendStartMessage();
             }
+        }
 
-            makeRequestWithRetries();
+        try {
+            if(makeRequestWithRetries()) {
+                // a retry has been scheduled, it will finish the request
+                return;
+            }
 
-            if(responseHandler != null) {
+            finished = true;
+            if(responseHandler != null && !cancelled) {
                 responseHandler.sendFinishMessage();
             }
         } catch (IOException e) {
-            if(responseHandler != null) {
+            finished = true;
+            if(responseHandler != null && !cancelled) {
                 responseHandler.sendFinishMessage();
                 if(this.isBinaryRequest) {
                     responseHandler.sendFailureMessage(e, (byte[]) null);
@@ -70,42 +138,289 @@ class AsyncHttpRequest implements Runnable {
     }
 
     private void makeRequest() throws IOException {
-        if(!Thread.currentThread().isInterrupted()) {
-            HttpResponse response = client.execute(request, context);
-            if(!Thread.currentThread().isInterrupted()) {
+        if(!cancelled && !Thread.currentThread().isInterrupted()) {
+            HttpCacheStorage cache = request.getMethod().equals("GET") ? owner.getCacheStorage() : null;
+            String url = request.getURI().toString();
+            keptEntry = null;
+
+            HttpCacheEntry cached = null;
+            if(cache != null) {
+                cached = cache.get(url);
+                if(cached != null && cached.isFresh(System.currentTimeMillis())) {
+                    if(responseHandler != null) {
+                        responseHandler.sendResponseMessage(cached.toResponse());
+                    }
+                    return;
+                }
+                if(cached != null) {
+                    addConditionalHeaders(cached);
+                }
+            }
+
+            CircuitBreaker breaker = owner.getCircuitBreaker(request);
+            if(breaker != null && !breaker.allowRequest()) {
+                // the host is down: answer with what we have, however stale, or fail now
+                if(cached != null) {
+                    if(responseHandler != null) {
+                        responseHandler.sendResponseMessage(cached.toResponse());
+                    }
+                    return;
+                }
+                throw new CircuitOpenException(breaker.getHost());
+            }
+
+            long requestTime = System.currentTimeMillis();
+            HttpResponse response;
+            try {
+                response = client.execute(request, context);
+            } catch (IOException e) {
+                // being offline or cancelled says nothing about the host
+                if(breaker != null && !cancelled && owner.isConnected()) {
+                    breaker.recordFailure();
+                }
+                throw e;
+            }
+            long responseTime = System.currentTimeMillis();
+
+            if(breaker != null) {
+                if(CircuitBreaker.isFailure(response.getStatusLine().getStatusCode())) {
+                    breaker.recordFailure();
+                } else {
+                    breaker.recordSuccess();
+                }
+            }
+
+            if(!cancelled && !Thread.currentThread().isInterrupted()) {
+                if(cache != null) {
+                    response = cacheResponse(cache, url, cached, response, requestTime, responseTime);
+                }
                 if(responseHandler != null) {
                     responseHandler.sendResponseMessage(response);
                 }
+                if(keptEntry != null) {
+                    // the handler saved the body where it stays, the cache points at it
+                    if(((FileHttpResponseHandler) responseHandler).hasStoredTarget()) {
+                        cache.putHeaders(url, keptEntry);
+                    }
+                    keptEntry = null;
+                }
             } else{
-                //TODO: should raise InterruptedException? this block is reached whenever the request is cancelled before its response is received
+                // cancelled before the response was handled: drop the
+                // connection rather than leave the body unread in the pool
+                request.abort();
             }
         }
     }
 
-    private void makeRequestWithRetries() throws ConnectException {
+    private void addConditionalHeaders(HttpCacheEntry cached) {
+        if(cached.getETag() != null) {
+            request.setHeader("If-None-Match", cached.getETag());
+        }
+        if(cached.getLastModified() != null) {
+            request.setHeader("If-Modified-Since", cached.getLastModified());
+        }
+    }
+
+    // Stores a cacheable response as the handler reads it, or turns a 304
+    // into the cached response it validated
+    private HttpResponse cacheResponse(HttpCacheStorage cache, String url, HttpCacheEntry cached, HttpResponse response, long requestTime, long responseTime) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+
+        if(status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            if(entity != null) {
+                entity.consumeContent();
+            }
+            HttpCacheEntry updated = cached.updatedWith(response, requestTime, responseTime);
+            cache.update(url, updated);
+            return updated.toResponse();
+        }
+
+        if(!HttpCacheEntry.isCacheable(response)) {
+            if(cached != null) {
+                cache.remove(url);
+            }
+            return response;
+        }
+
+        HttpCacheEntry entry = HttpCacheEntry.fromResponse(response, requestTime, responseTime);
+        File kept = getKeptBody();
+        if(kept != null) {
+            // stored once the handler has saved the body, rather than
+            // writing a second copy of it as it is read
+            entry.setBody(kept);
+            keptEntry = entry;
+            return response;
+        }
+
+        HttpCacheStorage.BodyWriter writer = cache.put(url, entry);
+        if(writer != null) {
+            response.setEntity(new CachingEntity(entity, writer));
+        }
+        return response;
+    }
+
+    // The file the handler saves the body to, if the cache can replay it from there
+    private File getKeptBody() {
+        if(responseHandler instanceof FileHttpResponseHandler) {
+            FileHttpResponseHandler handler = (FileHttpResponseHandler) responseHandler;
+            if(handler.isTargetKept()) {
+                return handler.getTarget();
+            }
+        }
+        return null;
+    }
+
+    // Hands the body to the cache as it is read. Whatever happens to the
+    // cache, the reader gets the response.
+    private static class CachingEntity extends HttpEntityWrapper {
+        private final HttpCacheStorage.BodyWriter writer;
+
+        CachingEntity(HttpEntity entity, HttpCacheStorage.BodyWriter writer) {
+            super(entity);
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CachingInputStream(wrappedEntity.getContent(), writer);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[4096];
+                int count;
+                while((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            // not read to the end, so not stored
+            writer.abort();
+            super.consumeContent();
+        }
+    }
+
+    private static class CachingInputStream extends FilterInputStream {
+        private HttpCacheStorage.BodyWriter writer;
+
+        CachingInputStream(InputStream in, HttpCacheStorage.BodyWriter writer) {
+            super(in);
+            this.writer = writer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read;
+            try {
+                read = in.read(buffer, offset, count);
+            } catch(IOException e) {
+                abort();
+                throw e;
+            }
+
+            if(writer != null) {
+                if(read == -1) {
+                    writer.commit();
+                    writer = null;
+                } else {
+                    try {
+                        writer.write(buffer, offset, read);
+                    } catch(IOException e) {
+                        // the disk failed, not the download
+                        abort();
+                    }
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if(n <= 0) {
+                return 0;
+            }
+
+            // skipped bytes still have to reach the cache
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void abort() {
+            if(writer != null) {
+                writer.abort();
+                writer = null;
+            }
+        }
+    }
+
+    // Makes one attempt. On a retryable failure the next attempt is handed
+    // to the client's timer (returns true) instead of sleeping here.
+    private boolean makeRequestWithRetries() throws ConnectException {
         // This is an additional layer of retry logic lifted from droid-fu
         // See: https://github.com/kaeppler/droid-fu/blob/master/src/main/java/com/github/droidfu/http/BetterHttpRequestBase.java
-        boolean retry = true;
         IOException cause = null;
-        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
-        while (retry) {
-            try {
-                makeRequest();
-                return;
-	    } catch (UnknownHostException e) {
-	        if(responseHandler != null) {
-	            responseHandler.sendFailureMessage(e, "can't resolve host");
-		}
-		return;
-            } catch (IOException e) {
-                cause = e;
-                retry = retryHandler.retryRequest(cause, ++executionCount, context);
-            } catch (NullPointerException e) {
-                // there's a bug in HttpClient 4.0.x that on some occasions causes
-                // DefaultRequestExecutor to throw an NPE, see
-                // http://code.google.com/p/android/issues/detail?id=5255
-                cause = new IOException("NPE in HttpClient" + e.getMessage());
-                retry = retryHandler.retryRequest(cause, ++executionCount, context);
+        try {
+            makeRequest();
+            return false;
+        } catch (UnknownHostException e) {
+            if(responseHandler != null && !cancelled) {
+                responseHandler.sendFailureMessage(e, "can't resolve host");
+            }
+            return false;
+        } catch (CircuitOpenException e) {
+            // retrying is exactly what the open circuit is there to prevent
+            ConnectException ex = new ConnectException(e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        } catch (IOException e) {
+            cause = e;
+        } catch (NullPointerException e) {
+            // there's a bug in HttpClient 4.0.x that on some occasions causes
+            // DefaultRequestExecutor to throw an NPE, see
+            // http://code.google.com/p/android/issues/detail?id=5255
+            cause = new IOException("NPE in HttpClient" + e.getMessage());
+        }
+
+        RetryHandler retryHandler = owner.getRetryHandler();
+        CircuitBreaker breaker = owner.getCircuitBreaker(request);
+        if(!cancelled && retryHandler.retryRequest(cause, ++executionCount, context) && owner.isConnected()
+                && (breaker == null || !breaker.isOpen())) {
+            long delay = retryHandler.getRetryDelay(executionCount);
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            if(elapsed + delay <= retryHandler.getRetryDeadline()) {
+                owner.retry(this, delay);
+                return true;
             }
         }
 
@@ -29,6 +29,9 @@ import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Used to intercept and handle the responses from requests made using 
@@ -64,6 +67,11 @@ import java.io.IOException;
  *     }
  * });
  * </pre>
+ * <p>
+ * By default callbacks run on the thread that created the handler, if it
+ * has a Looper. Pass a delivery executor to choose: {@link #MAIN},
+ * {@link #BACKGROUND} or {@link #DIRECT}. Work like parsing or writing to
+ * disk can then stay off the UI thread, which only gets the final update.
  */
 public class AsyncHttpResponseHandler {
     protected static final int SUCCESS_MESSAGE = 0;
@@ -71,7 +79,41 @@ public class AsyncHttpResponseHandler {
     protected static final int START_MESSAGE = 2;
     protected static final int FINISH_MESSAGE = 3;
 
+    /**
+     * Delivers callbacks on the thread running the request.
+     */
+    public static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Delivers callbacks on the main (UI) thread.
+     */
+    public static final Executor MAIN = new Executor() {
+        private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+        public void execute(Runnable command) {
+            mainHandler.post(command);
+        }
+    };
+
+    /**
+     * Delivers callbacks, in order, on a background thread shared by all
+     * handlers using it, so the request thread is free for the next request.
+     */
+    public static final Executor BACKGROUND = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AsyncHttpClient delivery");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     private Handler handler;
+    private Executor deliveryExecutor;
+    private volatile boolean cancelled;
 
     /**
      * Creates a new AsyncHttpResponseHandler
@@ -81,12 +123,32 @@ public class AsyncHttpResponseHandler {
         if(Looper.myLooper() != null) {
             handler = new Handler(){
                 public void handleMessage(Message msg){
-                    AsyncHttpResponseHandler.this.handleMessage(msg);
+                    if(!cancelled) {
+                        AsyncHttpResponseHandler.this.handleMessage(msg);
+                    }
                 }
             };
         }
     }
 
+    /**
+     * Creates a new AsyncHttpResponseHandler that delivers its callbacks
+     * through the passed executor.
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public AsyncHttpResponseHandler(Executor deliveryExecutor) {
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
+    /**
+     * Sets the executor callbacks are delivered through, null to go back
+     * to the creating thread's Looper.
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public void setDeliveryExecutor(Executor deliveryExecutor) {
+        this.deliveryExecutor = deliveryExecutor;
+    }
+
 
     //
     // Callbacks to be overridden, typically anonymously
@@ -196,8 +258,30 @@ public class AsyncHttpResponseHandler {
         }
     }
 
+    // Called by AsyncHttpRequest when its request is cancelled; no messages are sent afterwards
+    void setCancelled() {
+        cancelled = true;
+    }
+
+    protected boolean isCancelled() {
+        return cancelled;
+    }
+
     protected void sendMessage(Message msg) {
-        if(handler != null){
+        if(cancelled) {
+            return;
+        }
+
+        if(deliveryExecutor != null) {
+            final Message message = msg;
+            deliveryExecutor.execute(new Runnable() {
+                public void run() {
+                    if(!cancelled) {
+                        handleMessage(message);
+                    }
+                }
+            });
+        } else if(handler != null){
             handler.sendMessage(msg);
         } else {
             handleMessage(msg);
@@ -206,7 +290,7 @@ public class AsyncHttpResponseHandler {
 
     protected Message obtainMessage(int responseMessage, Object response) {
         Message msg = null;
-        if(handler != null){
+        if(handler != null && deliveryExecutor == null){
             msg = this.handler.obtainMessage(responseMessage, response);
         }else{
             msg = new Message();
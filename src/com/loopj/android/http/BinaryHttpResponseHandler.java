@@ -28,6 +28,7 @@ import org.apache.http.entity.BufferedHttpEntity;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 /**
  * Used to intercept and handle the responses from requests made using
@@ -76,6 +77,15 @@ public class BinaryHttpResponseHandler extends AsyncHttpResponseHandler {
         mAllowedContentTypes = allowedContentTypes;
     }
 
+    /**
+     * Creates a new BinaryHttpResponseHandler that delivers its callbacks
+     * through the passed executor.
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public BinaryHttpResponseHandler(Executor deliveryExecutor) {
+        super(deliveryExecutor);
+    }
+
 
     //
     // Callbacks to be overridden, typically anonymously
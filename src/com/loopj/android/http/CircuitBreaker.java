@@ -0,0 +1,146 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to a host that keeps failing. After
+ * {@link #FAILURE_THRESHOLD} consecutive failures the circuit opens and
+ * {@link #allowRequest()} refuses everything, so callers fail at once
+ * (or fall back to what they have cached) instead of waiting on timeouts
+ * and retries. Once the open period is over a single probe request is let
+ * through: if it succeeds the circuit closes, if it fails the circuit opens
+ * again for twice as long, up to {@link #MAX_OPEN_MILLIS}.
+ * <p>
+ * There is one breaker per host, shared by everybody talking to it.
+ */
+public class CircuitBreaker {
+    public static final int FAILURE_THRESHOLD = 5;
+    public static final long OPEN_MILLIS = 10 * 1000;
+    public static final long MAX_OPEN_MILLIS = 5 * 60 * 1000;
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+    private final String host;
+    private int state = CLOSED;
+    private int failures;
+    private long openMillis = OPEN_MILLIS;
+    private long openUntil;
+    private long probeStartedAt;
+
+    /**
+     * Returns the breaker shared by all requests to the given host.
+     * @param host the host name, as in the request URI
+     */
+    public static CircuitBreaker forHost(String host) {
+        synchronized(breakers) {
+            CircuitBreaker breaker = breakers.get(host);
+            if(breaker == null) {
+                breaker = new CircuitBreaker(host);
+                breakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Whether a request may be sent now. While half open only one probe
+     * is allowed at a time; a probe that never reports back is replaced
+     * after an open period.
+     */
+    public synchronized boolean allowRequest() {
+        long now = SystemClock.elapsedRealtime();
+        switch(state) {
+            case OPEN:
+                if(now < openUntil) {
+                    return false;
+                }
+                state = HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            case HALF_OPEN:
+                if(now - probeStartedAt < openMillis) {
+                    return false;
+                }
+                probeStartedAt = now;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Whether requests are currently being refused. Unlike
+     * {@link #allowRequest()} it never lets a probe through.
+     */
+    public synchronized boolean isOpen() {
+        return state != CLOSED;
+    }
+
+    /**
+     * The host answered: closes the circuit.
+     */
+    public synchronized void recordSuccess() {
+        state = CLOSED;
+        failures = 0;
+        openMillis = OPEN_MILLIS;
+    }
+
+    /**
+     * The host could not be reached or answered with a server error.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if(state == HALF_OPEN) {
+            // the probe failed, wait longer before the next one
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+            open();
+        } else if(state == CLOSED && failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = OPEN;
+        openUntil = SystemClock.elapsedRealtime() + openMillis;
+    }
+
+    /**
+     * Whether a response status means the host is in trouble.
+     */
+    public static boolean isFailure(int statusCode) {
+        return statusCode >= 500;
+    }
+}
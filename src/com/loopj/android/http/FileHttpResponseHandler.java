@@ -0,0 +1,404 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.os.Message;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Used to intercept and handle the responses from requests made using
+ * {@link AsyncHttpClient}. Streams the response body to a file instead of
+ * buffering it in memory. The body is written to a temporary file next to
+ * the target and only moved into place once it has been fully received, so
+ * the target never holds a partial download.
+ * <p>
+ * Override {@link #commit(File)} to move the downloaded file somewhere other
+ * than the target (for example into a cache).
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * AsyncHttpClient client = new AsyncHttpClient();
+ * client.get("http://www.example.com/image.png", new FileHttpResponseHandler(new File(dir, "image.png")) {
+ *     &#064;Override
+ *     public void onProgress(long bytesWritten, long totalSize) {
+ *         // totalSize is -1 when the server did not send a Content-Length
+ *     }
+ *
+ *     &#064;Override
+ *     public void onSuccess(File file) {
+ *         // Successfully got a response
+ *     }
+ *
+ *     &#064;Override
+ *     public void onFailure(Throwable e, String response) {
+ *         // Response failed :(
+ *     }
+ * });
+ * </pre>
+ */
+public class FileHttpResponseHandler extends AsyncHttpResponseHandler {
+    protected static final int PROGRESS_MESSAGE = 4;
+
+    /** Suffix of the temporary files bodies are written to. */
+    public static final String TEMP_SUFFIX = ".part";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final int PROGRESS_STEP = 32 * 1024;
+
+    // Buffers are shared by every download, so memory stays at
+    // BUFFER_SIZE times the number of concurrent requests
+    private static final LinkedList<byte[]> bufferPool = new LinkedList<byte[]>();
+
+    private final File target;
+    private final String[] allowedContentTypes;
+    private volatile boolean targetStored;
+
+    /**
+     * Creates a new FileHttpResponseHandler that accepts any content type.
+     * @param target the file the response body is saved to
+     */
+    public FileHttpResponseHandler(File target) {
+        this(target, null);
+    }
+
+    /**
+     * Creates a new FileHttpResponseHandler that only saves responses whose
+     * Content-Type is in the passed list.
+     * @param target the file the response body is saved to
+     * @param allowedContentTypes accepted content types, null to accept any
+     */
+    public FileHttpResponseHandler(File target, String[] allowedContentTypes) {
+        super();
+        this.target = target;
+        this.allowedContentTypes = allowedContentTypes;
+    }
+
+    /**
+     * Creates a new FileHttpResponseHandler that only saves responses whose
+     * Content-Type is in the passed list and delivers its callbacks through
+     * the passed executor.
+     * @param target the file the response body is saved to
+     * @param allowedContentTypes accepted content types, null to accept any
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public FileHttpResponseHandler(File target, String[] allowedContentTypes, Executor deliveryExecutor) {
+        super(deliveryExecutor);
+        this.target = target;
+        this.allowedContentTypes = allowedContentTypes;
+    }
+
+    /**
+     * Whether a file name is one of the temporary files the body is written
+     * to. They are normally deleted or moved into place, but a process
+     * killed in the middle of a download leaves them behind; owners of the
+     * target folders should delete old ones now and then.
+     * @param name the file name
+     */
+    public static boolean isTempFile(String name) {
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * The file the response body is saved to.
+     */
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Whether the target stays as it is once the body has been saved to it,
+     * so the http cache can replay the response from the target instead of
+     * storing a copy of the body. False by default, override when the
+     * target is itself a cache entry.
+     */
+    public boolean isTargetKept() {
+        return false;
+    }
+
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * Fired as the body is written, override to handle in your own code
+     * @param bytesWritten bytes received so far
+     * @param totalSize the size of the body, or -1 if unknown
+     */
+    public void onProgress(long bytesWritten, long totalSize) {}
+
+    /**
+     * Fired when a request returns successfully, override to handle in your own code
+     * @param file the file holding the body of the HTTP response
+     */
+    public void onSuccess(File file) {}
+
+    /**
+     * Fired when a request returns successfully, override to handle in your own code
+     * @param statusCode the status code of the response
+     * @param file the file holding the body of the HTTP response
+     */
+    public void onSuccess(int statusCode, File file) {
+        onSuccess(file);
+    }
+
+    /**
+     * Moves the fully downloaded temporary file to its final place. Runs
+     * in the background thread. Override to store the file elsewhere.
+     * @param temp the downloaded file, in the same folder as the target
+     * @return true if the file was stored, false fails the request
+     */
+    protected boolean commit(File temp) {
+        if(temp.renameTo(target)) {
+            return true;
+        }
+
+        // Some filesystems won't rename over an existing file
+        target.delete();
+        return temp.renameTo(target);
+    }
+
+
+    /**
+     * Called once the body has been written, before {@link #commit(File)}.
+     * Runs in the background thread. Override to measure the transfer, for
+     * example to estimate bandwidth. Not called when the body was replayed
+     * from the cache, as that says nothing about the network.
+     * @param bytes the size of the body
+     * @param millis the time spent reading the body
+     */
+    protected void onDownloaded(long bytes, long millis) {}
+
+
+    //
+    // Pre-processing of messages (executes in background threadpool thread)
+    //
+
+    protected void sendSuccessMessage(int statusCode, File file) {
+        sendMessage(obtainMessage(SUCCESS_MESSAGE, new Object[]{statusCode, file}));
+    }
+
+    protected void sendProgressMessage(long bytesWritten, long totalSize) {
+        sendMessage(obtainMessage(PROGRESS_MESSAGE, new Object[]{bytesWritten, totalSize}));
+    }
+
+
+    //
+    // Pre-processing of messages (in original calling thread, typically the UI thread)
+    //
+
+    protected void handleSuccessMessage(int statusCode, File file) {
+        onSuccess(statusCode, file);
+    }
+
+    // Methods which emulate android's Handler and Message methods
+    protected void handleMessage(Message msg) {
+        Object[] response;
+        switch(msg.what) {
+            case SUCCESS_MESSAGE:
+                response = (Object[])msg.obj;
+                handleSuccessMessage(((Integer) response[0]).intValue(), (File) response[1]);
+                break;
+            case PROGRESS_MESSAGE:
+                response = (Object[])msg.obj;
+                onProgress(((Long) response[0]).longValue(), ((Long) response[1]).longValue());
+                break;
+            default:
+                super.handleMessage(msg);
+                break;
+        }
+    }
+
+    // Interface to AsyncHttpRequest
+    boolean hasStoredTarget() {
+        return targetStored;
+    }
+
+    void sendResponseMessage(HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        targetStored = false;
+
+        if(status.getStatusCode() >= 300) {
+            discard(entity);
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), (String) null);
+            return;
+        }
+
+        if(allowedContentTypes != null && !isAllowedContentType(response.getHeaders("Content-Type"))) {
+            discard(entity);
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), "Content-Type not allowed!"), (String) null);
+            return;
+        }
+
+        if(entity instanceof HttpCacheEntry.CachedEntity
+                && ((HttpCacheEntry.CachedEntity) entity).getFile().equals(target)) {
+            // replayed from the target itself, it already holds the body
+            sendSuccessMessage(status.getStatusCode(), target);
+            return;
+        }
+
+        File temp = null;
+        try {
+            temp = download(entity);
+            if(!commit(temp)) {
+                throw new IOException("Could not store " + target);
+            }
+            temp = null;
+            targetStored = true;
+        } catch(IOException e) {
+            sendFailureMessage(e, (String) null);
+            return;
+        } finally {
+            if(temp != null) {
+                temp.delete();
+            }
+        }
+
+        sendSuccessMessage(status.getStatusCode(), target);
+    }
+
+    private File download(HttpEntity entity) throws IOException {
+        File folder = target.getAbsoluteFile().getParentFile();
+        if(!folder.exists()) {
+            folder.mkdirs();
+        }
+
+        File temp = File.createTempFile("." + target.getName(), TEMP_SUFFIX, folder);
+        if(entity == null) {
+            return temp;
+        }
+
+        long totalSize = entity.getContentLength();
+        long written = 0;
+        long reported = 0;
+
+        byte[] buffer = obtainBuffer();
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            long start = System.nanoTime();
+            is = entity.getContent();
+            os = new FileOutputStream(temp);
+
+            int count;
+            while((count = is.read(buffer)) != -1) {
+                if(isCancelled() || Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Request cancelled");
+                }
+
+                os.write(buffer, 0, count);
+                written += count;
+
+                if(written - reported >= PROGRESS_STEP) {
+                    sendProgressMessage(written, totalSize);
+                    reported = written;
+                }
+            }
+            os.close();
+            os = null;
+
+            if(written != reported) {
+                sendProgressMessage(written, totalSize);
+            }
+            if(!(entity instanceof HttpCacheEntry.CachedEntity)) {
+                onDownloaded(written, (System.nanoTime() - start) / 1000000);
+            }
+            return temp;
+        } catch(IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            recycleBuffer(buffer);
+            closeQuietly(os);
+            closeQuietly(is);
+        }
+    }
+
+    private boolean isAllowedContentType(Header[] contentTypeHeaders) {
+        if(contentTypeHeaders.length != 1) {
+            return false;
+        }
+
+        String contentType = contentTypeHeaders[0].getValue();
+        for(String allowed : allowedContentTypes) {
+            if(allowed.equals(contentType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void discard(HttpEntity entity) {
+        if(entity == null) {
+            return;
+        }
+
+        try {
+            entity.consumeContent();
+        } catch(IOException e) {
+            // the connection is closed instead of reused
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch(IOException e) {
+            // nothing left to do
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        synchronized(bufferPool) {
+            if(!bufferPool.isEmpty()) {
+                return bufferPool.removeFirst();
+            }
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(byte[] buffer) {
+        synchronized(bufferPool) {
+            if(bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.addFirst(buffer);
+            }
+        }
+    }
+}
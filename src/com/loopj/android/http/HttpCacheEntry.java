@@ -0,0 +1,404 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * A response stored by an {@link HttpCacheStorage}: its status line, its
+ * end-to-end headers, the times it was requested and received, and the
+ * file holding its body.
+ * <p>
+ * Freshness and age follow RFC 2616 section 13.2. Responses without an
+ * explicit lifetime get a heuristic one of 10% of the time since they were
+ * last modified, capped at a day.
+ */
+public class HttpCacheEntry {
+    private static final int FORMAT_VERSION = 1;
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+
+    // Not stored: they describe one particular transfer, not the resource
+    private static final String[] UNSTORED_HEADERS = new String[] {
+        "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization",
+        "TE", "Trailers", "Transfer-Encoding", "Upgrade",
+        "Content-Encoding", "Content-Length"
+    };
+
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final Header[] headers;
+    private final long requestTime;
+    private final long responseTime;
+    private File body;
+
+    /**
+     * Creates an entry.
+     * @param statusCode the status code of the stored response
+     * @param reasonPhrase the reason phrase of the stored response
+     * @param headers the headers of the stored response
+     * @param requestTime when the request was sent, in milliseconds since the epoch
+     * @param responseTime when the response was received, in milliseconds since the epoch
+     */
+    public HttpCacheEntry(int statusCode, String reasonPhrase, Header[] headers, long requestTime, long responseTime) {
+        this.statusCode = statusCode;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers;
+        this.requestTime = requestTime;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Creates an entry for a response received from the network.
+     */
+    public static HttpCacheEntry fromResponse(HttpResponse response, long requestTime, long responseTime) {
+        return new HttpCacheEntry(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(),
+                storedHeaders(response.getAllHeaders()), requestTime, responseTime);
+    }
+
+    /**
+     * Whether a response may be stored: a 200 that is not marked no-store,
+     * does not vary on request headers other than Accept-Encoding (the body
+     * is stored decoded), and can either stay fresh or be revalidated.
+     */
+    public static boolean isCacheable(HttpResponse response) {
+        if(response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || response.getEntity() == null) {
+            return false;
+        }
+
+        HttpCacheEntry entry = fromResponse(response, 0, 0);
+        if(entry.hasDirective("no-store")) {
+            return false;
+        }
+
+        for(Header vary : response.getHeaders("Vary")) {
+            for(HeaderElement element : vary.getElements()) {
+                if(!element.getName().equalsIgnoreCase("Accept-Encoding")) {
+                    return false;
+                }
+            }
+        }
+
+        return entry.hasValidators() || entry.getFreshnessLifetime() > 0;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    public Header[] getHeaders() {
+        return headers;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public long getResponseTime() {
+        return responseTime;
+    }
+
+    /**
+     * The file holding the body, set by the storage.
+     */
+    public File getBody() {
+        return body;
+    }
+
+    public void setBody(File body) {
+        this.body = body;
+    }
+
+    public String getFirstHeader(String name) {
+        for(Header header : headers) {
+            if(header.getName().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    public String getETag() {
+        return getFirstHeader("ETag");
+    }
+
+    public String getLastModified() {
+        return getFirstHeader("Last-Modified");
+    }
+
+    public boolean hasValidators() {
+        return getETag() != null || getLastModified() != null;
+    }
+
+    /**
+     * True if the entry may be served without asking the server: it is
+     * within its freshness lifetime and was not marked no-cache.
+     * @param now the current time in milliseconds since the epoch
+     */
+    public boolean isFresh(long now) {
+        if(hasDirective("no-cache")) {
+            return false;
+        }
+        return getCurrentAge(now) < getFreshnessLifetime();
+    }
+
+    /**
+     * How long the response stays fresh after it was generated, in milliseconds.
+     */
+    public long getFreshnessLifetime() {
+        long maxAge = getMaxAge();
+        if(maxAge >= 0) {
+            return maxAge * 1000;
+        }
+
+        long date = getDateValue("Date", responseTime);
+
+        String expires = getFirstHeader("Expires");
+        if(expires != null) {
+            // an invalid Expires (like "0") means already expired
+            return Math.max(0, getDateValue("Expires", date) - date);
+        }
+
+        long lastModified = getDateValue("Last-Modified", -1);
+        if(lastModified != -1 && lastModified < date) {
+            return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+        }
+
+        return 0;
+    }
+
+    /**
+     * The age of the response, in milliseconds.
+     * @param now the current time in milliseconds since the epoch
+     */
+    public long getCurrentAge(long now) {
+        long date = getDateValue("Date", responseTime);
+        long apparentAge = Math.max(0, responseTime - date);
+
+        long ageValue = 0;
+        String age = getFirstHeader("Age");
+        if(age != null) {
+            try {
+                ageValue = Long.parseLong(age.trim()) * 1000;
+            } catch(NumberFormatException e) {
+                ageValue = 0;
+            }
+        }
+
+        long correctedInitialAge = Math.max(apparentAge, ageValue) + (responseTime - requestTime);
+        long residentTime = now - responseTime;
+        return correctedInitialAge + residentTime;
+    }
+
+    /**
+     * The entry after a 304 response: the headers the server sent replace
+     * the stored ones (they carry the new Date, Expires, Cache-Control...)
+     * and the times are those of the revalidation.
+     */
+    public HttpCacheEntry updatedWith(HttpResponse notModified, long requestTime, long responseTime) {
+        Header[] received = storedHeaders(notModified.getAllHeaders());
+
+        List<Header> merged = new ArrayList<Header>();
+        for(Header header : headers) {
+            if(!containsHeader(received, header.getName())) {
+                merged.add(header);
+            }
+        }
+        for(Header header : received) {
+            merged.add(header);
+        }
+
+        HttpCacheEntry updated = new HttpCacheEntry(statusCode, reasonPhrase, merged.toArray(new Header[merged.size()]), requestTime, responseTime);
+        updated.setBody(body);
+        return updated;
+    }
+
+    /**
+     * A response that replays this entry, with the stored body as its entity.
+     */
+    public HttpResponse toResponse() {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, reasonPhrase));
+        response.setHeaders(headers);
+        response.setEntity(new CachedEntity(body, getFirstHeader("Content-Type")));
+        return response;
+    }
+
+    /**
+     * The body of a response replayed from the cache, so handlers can tell
+     * it apart from one read off the network.
+     */
+    static class CachedEntity extends FileEntity {
+        CachedEntity(File file, String contentType) {
+            super(file, contentType);
+        }
+
+        File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Serializes everything but the body.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(statusCode);
+            out.writeUTF(reasonPhrase != null ? reasonPhrase : "");
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            out.writeInt(headers.length);
+            for(Header header : headers) {
+                out.writeUTF(header.getName());
+                out.writeUTF(header.getValue() != null ? header.getValue() : "");
+            }
+            out.close();
+        } catch(IOException e) {
+            // can't happen writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads an entry written by {@link #toByteArray()}, null if the data
+     * can't be read.
+     */
+    public static HttpCacheEntry fromByteArray(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if(in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+
+            int statusCode = in.readInt();
+            String reasonPhrase = in.readUTF();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+
+            Header[] headers = new Header[in.readInt()];
+            for(int i = 0; i < headers.length; i++) {
+                headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+            }
+
+            return new HttpCacheEntry(statusCode, reasonPhrase, headers, requestTime, responseTime);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private boolean hasDirective(String directive) {
+        for(Header header : headers) {
+            if(!header.getName().equalsIgnoreCase("Cache-Control") && !header.getName().equalsIgnoreCase("Pragma")) {
+                continue;
+            }
+            for(HeaderElement element : header.getElements()) {
+                if(element.getName().equalsIgnoreCase(directive)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // max-age in seconds, -1 if not present
+    private long getMaxAge() {
+        for(Header header : headers) {
+            if(!header.getName().equalsIgnoreCase("Cache-Control")) {
+                continue;
+            }
+            for(HeaderElement element : header.getElements()) {
+                if(element.getName().equalsIgnoreCase("max-age") && element.getValue() != null) {
+                    try {
+                        return Math.max(0, Long.parseLong(element.getValue().trim()));
+                    } catch(NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private long getDateValue(String name, long defaultValue) {
+        String value = getFirstHeader(name);
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            Date date = DateUtils.parseDate(value);
+            return date.getTime();
+        } catch(DateParseException e) {
+            return name.equals("Expires") ? 0 : defaultValue;
+        }
+    }
+
+    private static Header[] storedHeaders(Header[] headers) {
+        List<Header> stored = new ArrayList<Header>();
+        for(Header header : headers) {
+            if(!isUnstored(header.getName())) {
+                stored.add(header);
+            }
+        }
+        return stored.toArray(new Header[stored.size()]);
+    }
+
+    private static boolean isUnstored(String name) {
+        for(String unstored : UNSTORED_HEADERS) {
+            if(unstored.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsHeader(Header[] headers, String name) {
+        for(Header header : headers) {
+            if(header.getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.io.IOException;
+
+/**
+ * Where {@link AsyncHttpClient} keeps cached GET responses, keyed by url.
+ * Implementations are called from the request threads and must be thread
+ * safe.
+ *
+ * @see AsyncHttpClient#setCacheStorage(HttpCacheStorage)
+ */
+public interface HttpCacheStorage {
+    /**
+     * @param url the request url
+     * @return the stored entry with its body set, or null if there is none
+     *         (or its body is gone)
+     */
+    HttpCacheEntry get(String url);
+
+    /**
+     * Starts storing a response. The body is handed to the returned writer
+     * while the response handler reads it from the network, so a failure to
+     * store it only loses the cache entry, never the response.
+     * @param url the request url
+     * @param entry the response status and headers
+     * @return a writer for the body, or null if the response can't be stored
+     */
+    BodyWriter put(String url, HttpCacheEntry entry);
+
+    /**
+     * Stores a response whose body the response handler has already saved,
+     * to the file set as the entry's body, so the storage does not keep a
+     * copy of its own. The file is replayed as it is.
+     * @param url the request url
+     * @param entry the response status and headers, with its body set
+     * @return false if the response can't be stored this way
+     * @see FileHttpResponseHandler#isTargetKept()
+     */
+    boolean putHeaders(String url, HttpCacheEntry entry);
+
+    /**
+     * Replaces the status and headers of a stored entry, keeping its body.
+     * Used after a successful revalidation.
+     * @param url the request url
+     * @param entry the updated entry
+     */
+    void update(String url, HttpCacheEntry entry);
+
+    /**
+     * Forgets the entry stored for url, if any.
+     * @param url the request url
+     */
+    void remove(String url);
+
+    /**
+     * Receives the body of a response being stored. Nothing is visible
+     * through {@link HttpCacheStorage#get(String)} until it is committed.
+     */
+    interface BodyWriter {
+        /**
+         * Appends the next bytes of the body.
+         * @throws IOException if they could not be stored, the writer is aborted then
+         */
+        void write(byte[] buffer, int offset, int count) throws IOException;
+
+        /**
+         * The whole body has been written: stores the entry.
+         * @return false if it could not be stored
+         */
+        boolean commit();
+
+        /**
+         * Drops what was written so far.
+         */
+        void abort();
+    }
+}
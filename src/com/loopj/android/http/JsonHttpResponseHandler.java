@@ -25,6 +25,8 @@ import org.json.JSONTokener;
 
 import android.os.Message;
 
+import java.util.concurrent.Executor;
+
 /**
  * Used to intercept and handle the responses from requests made using
  * {@link AsyncHttpClient}, with automatic parsing into a {@link JSONObject}
@@ -39,6 +41,23 @@ import android.os.Message;
  */
 public class JsonHttpResponseHandler extends AsyncHttpResponseHandler {
     protected static final int SUCCESS_JSON_MESSAGE = 100;
+    protected static final int FAILURE_JSON_MESSAGE = 101;
+
+    /**
+     * Creates a new JsonHttpResponseHandler
+     */
+    public JsonHttpResponseHandler() {
+        super();
+    }
+
+    /**
+     * Creates a new JsonHttpResponseHandler that delivers its callbacks
+     * through the passed executor.
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public JsonHttpResponseHandler(Executor deliveryExecutor) {
+        super(deliveryExecutor);
+    }
 
     //
     // Callbacks to be overridden, typically anonymously
@@ -102,6 +121,20 @@ public class JsonHttpResponseHandler extends AsyncHttpResponseHandler {
         }
     }
 
+    // The error body is parsed here too, so the calling thread only gets the result
+    @Override
+    protected void sendFailureMessage(Throwable e, String responseBody) {
+        Object jsonResponse = responseBody;
+        if(responseBody != null) {
+            try {
+                jsonResponse = parseResponse(responseBody);
+            } catch(JSONException ex) {
+                jsonResponse = responseBody;
+            }
+        }
+        sendMessage(obtainMessage(FAILURE_JSON_MESSAGE, new Object[]{e, jsonResponse}));
+    }
+
 
     //
     // Pre-processing of messages (in original calling thread, typically the UI thread)
@@ -114,6 +147,10 @@ public class JsonHttpResponseHandler extends AsyncHttpResponseHandler {
                 Object[] response = (Object[]) msg.obj;
                 handleSuccessJsonMessage(((Integer) response[0]).intValue(), response[1]);
                 break;
+            case FAILURE_JSON_MESSAGE:
+                Object[] failure = (Object[]) msg.obj;
+                handleFailureJsonMessage((Throwable) failure[0], failure[1]);
+                break;
             default:
                 super.handleMessage(msg);
         }
@@ -142,6 +179,18 @@ public class JsonHttpResponseHandler extends AsyncHttpResponseHandler {
 		return result;
     }
 
+    protected void handleFailureJsonMessage(Throwable e, Object jsonResponse) {
+        if(jsonResponse instanceof JSONObject) {
+            onFailure(e, (JSONObject)jsonResponse);
+        } else if(jsonResponse instanceof JSONArray) {
+            onFailure(e, (JSONArray)jsonResponse);
+        } else if(jsonResponse != null) {
+            onFailure(e, jsonResponse.toString());
+        } else {
+            onFailure(e, "");
+        }
+    }
+
     @Override
     protected void handleFailureMessage(Throwable e, String responseBody) {
         try {
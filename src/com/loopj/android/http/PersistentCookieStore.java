@@ -18,14 +18,28 @@
 
 package com.loopj.android.http;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.client.CookieStore;
 import org.apache.http.cookie.Cookie;
@@ -33,115 +47,261 @@ import org.apache.http.cookie.Cookie;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * A persistent cookie store which implements the Apache HttpClient
  * {@link CookieStore} interface. Cookies are stored and will persist on the
- * user's device between application sessions since they are serialized and
- * stored in {@link SharedPreferences}.
+ * user's device between application sessions since they are written to a
+ * small binary file in the application's files directory.
+ * <p>
+ * The file is read the first time the store is used, not when it is
+ * constructed. Changes are written in the background: every change made
+ * within {@link #WRITE_DELAY} milliseconds of the first one is saved by a
+ * single write, so a response setting several cookies costs one write
+ * instead of one per cookie. Call {@link #flush()} to save immediately.
+ * <p>
+ * Cookies saved in {@link SharedPreferences} by earlier versions of this
+ * class are moved to the file on first use.
  * <p>
  * Instances of this class are designed to be used with
  * {@link AsyncHttpClient#setCookieStore}, but can also be used with a 
  * regular old apache HttpClient/HttpContext if you prefer.
  */
 public class PersistentCookieStore implements CookieStore {
+    private static final String LOG_TAG = "PersistentCookieStore";
+
+    /**
+     * How long changes are collected before they are written, in milliseconds.
+     */
+    public static final long WRITE_DELAY = 1000;
+
+    private static final String COOKIE_FILE = "cookies.bin";
+    private static final int FORMAT_VERSION = 1;
+
+    // Storage used by earlier versions, only read to migrate it
     private static final String COOKIE_PREFS = "CookiePrefsFile";
     private static final String COOKIE_NAME_STORE = "names";
     private static final String COOKIE_NAME_PREFIX = "cookie_";
 
+    // One thread writes for every store, writes are small and rare
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PersistentCookieStore writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Context context;
     private final ConcurrentHashMap<String, Cookie> cookies;
-    private final SharedPreferences cookiePrefs;
+    private final AtomicBoolean writePending = new AtomicBoolean();
+    private final Object writeLock = new Object();
+    private volatile boolean loaded;
+    private File cookieFile;
+    private boolean legacyPrefsPending;
+
+    private final Runnable writeTask = new Runnable() {
+        public void run() {
+            write();
+        }
+    };
 
     /**
-     * Construct a persistent cookie store.
+     * Construct a persistent cookie store. Nothing is read until the store
+     * is first used.
      */
     public PersistentCookieStore(Context context) {
-        cookiePrefs = context.getSharedPreferences(COOKIE_PREFS, 0);
-        cookies = new ConcurrentHashMap<String, Cookie>();
-
-        // Load any previously stored cookies into the store
-        String storedCookieNames = cookiePrefs.getString(COOKIE_NAME_STORE, null);
-        if(storedCookieNames != null) {
-            String[] cookieNames = TextUtils.split(storedCookieNames, ",");
-            for(String name : cookieNames) {
-                String encodedCookie = cookiePrefs.getString(COOKIE_NAME_PREFIX + name, null);
-                if(encodedCookie != null) {
-                    Cookie decodedCookie = decodeCookie(encodedCookie);
-                    if(decodedCookie != null) {
-                        cookies.put(name, decodedCookie);
-                    }
-                }
-            }
-
-            // Clear out expired cookies
-            clearExpired(new Date());
-        }
+        Context applicationContext = context.getApplicationContext();
+        this.context = applicationContext != null ? applicationContext : context;
+        this.cookies = new ConcurrentHashMap<String, Cookie>();
     }
 
     @Override
     public void addCookie(Cookie cookie) {
-        String name = cookie.getName();
+        ensureLoaded();
 
         // Save cookie into local store, or remove if expired
+        String name = cookie.getName();
         if(!cookie.isExpired(new Date())) {
             cookies.put(name, cookie);
         } else {
             cookies.remove(name);
         }
 
-        // Save cookie into persistent store
-        SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
-        prefsWriter.putString(COOKIE_NAME_STORE, TextUtils.join(",", cookies.keySet()));
-        prefsWriter.putString(COOKIE_NAME_PREFIX + name, encodeCookie(new SerializableCookie(cookie)));
-        prefsWriter.commit();
+        scheduleWrite();
     }
 
     @Override
     public void clear() {
-        // Clear cookies from local store
+        ensureLoaded();
         cookies.clear();
+        scheduleWrite();
+    }
+
+    @Override
+    public boolean clearExpired(Date date) {
+        ensureLoaded();
 
-        // Clear cookies from persistent store
-        SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
-        for(String name : cookies.keySet()) {
-            prefsWriter.remove(COOKIE_NAME_PREFIX + name);
+        boolean clearedAny = removeExpired(date);
+        if(clearedAny) {
+            scheduleWrite();
         }
-        prefsWriter.remove(COOKIE_NAME_STORE);
-        prefsWriter.commit();
+        return clearedAny;
     }
 
     @Override
-    public boolean clearExpired(Date date) {
-        boolean clearedAny = false;
-        SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
+    public List<Cookie> getCookies() {
+        ensureLoaded();
+        return new ArrayList<Cookie>(cookies.values());
+    }
 
-        for(ConcurrentHashMap.Entry<String, Cookie> entry : cookies.entrySet()) {
-            String name = entry.getKey();
-            Cookie cookie = entry.getValue();
-            if(cookie.isExpired(date)) {
-                // Clear cookies from local store
-                cookies.remove(name);
+    /**
+     * Writes any pending change now, on the calling thread.
+     */
+    public void flush() {
+        if(writePending.get()) {
+            write();
+        }
+    }
 
-                // Clear cookies from persistent store
-                prefsWriter.remove(COOKIE_NAME_PREFIX + name);
 
-                // We've cleared at least one
-                clearedAny = true;
+    //
+    // Loading and writing
+    //
+
+    private void ensureLoaded() {
+        if(loaded) {
+            return;
+        }
+
+        synchronized(this) {
+            if(loaded) {
+                return;
+            }
+
+            cookieFile = new File(context.getFilesDir(), COOKIE_FILE);
+            if(cookieFile.exists()) {
+                readFile();
+            } else {
+                legacyPrefsPending = readLegacyPrefs();
+            }
+
+            boolean clearedAny = removeExpired(new Date());
+            loaded = true;
+
+            if(clearedAny || legacyPrefsPending) {
+                scheduleWrite();
             }
         }
+    }
 
-        // Update names in persistent store
-        if(clearedAny) {
-            prefsWriter.putString(COOKIE_NAME_STORE, TextUtils.join(",", cookies.keySet()));
+    private void readFile() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cookieFile)));
+            if(in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                Cookie cookie = SerializableCookie.read(in);
+                cookies.put(cookie.getName(), cookie);
+            }
+        } catch(IOException e) {
+            // a damaged file loses the cookies read so far, not the store
+            Log.w(LOG_TAG, "Could not read " + cookieFile, e);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Returns true if there were cookies stored by an earlier version
+    private boolean readLegacyPrefs() {
+        SharedPreferences cookiePrefs = context.getSharedPreferences(COOKIE_PREFS, 0);
+        String storedCookieNames = cookiePrefs.getString(COOKIE_NAME_STORE, null);
+        if(storedCookieNames == null) {
+            return false;
+        }
+
+        String[] cookieNames = TextUtils.split(storedCookieNames, ",");
+        for(String name : cookieNames) {
+            String encodedCookie = cookiePrefs.getString(COOKIE_NAME_PREFIX + name, null);
+            if(encodedCookie != null) {
+                Cookie decodedCookie = decodeCookie(encodedCookie);
+                if(decodedCookie != null) {
+                    cookies.put(name, decodedCookie);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void scheduleWrite() {
+        // Changes made while a write is pending are picked up by it
+        if(writePending.compareAndSet(false, true)) {
+            writer.schedule(writeTask, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void write() {
+        synchronized(writeLock) {
+            // Cleared before the snapshot so a change made during the write schedules another
+            writePending.set(false);
+            List<Cookie> snapshot = new ArrayList<Cookie>(cookies.values());
+
+            File temp = new File(cookieFile.getPath() + ".tmp");
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for(Cookie cookie : snapshot) {
+                    new SerializableCookie(cookie).write(out);
+                }
+                out.close();
+                out = null;
+
+                // The old file stays intact until the new one is complete
+                if(!temp.renameTo(cookieFile)) {
+                    throw new IOException("Could not rename " + temp);
+                }
+            } catch(IOException e) {
+                Log.w(LOG_TAG, "Could not write " + cookieFile, e);
+                closeQuietly(out);
+                temp.delete();
+                return;
+            }
+
+            if(legacyPrefsPending) {
+                context.getSharedPreferences(COOKIE_PREFS, 0).edit().clear().commit();
+                legacyPrefsPending = false;
+            }
         }
-        prefsWriter.commit();
+    }
 
+    private boolean removeExpired(Date date) {
+        boolean clearedAny = false;
+        for(ConcurrentHashMap.Entry<String, Cookie> entry : cookies.entrySet()) {
+            if(entry.getValue().isExpired(date)) {
+                cookies.remove(entry.getKey());
+                clearedAny = true;
+            }
+        }
         return clearedAny;
     }
 
-    @Override
-    public List<Cookie> getCookies() {
-        return new ArrayList<Cookie>(cookies.values());
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch(IOException e) {
+            // nothing left to do
+        }
     }
 
 
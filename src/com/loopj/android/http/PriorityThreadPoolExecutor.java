@@ -0,0 +1,111 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size thread pool that runs queued requests by priority, highest
+ * first, and in submission order within the same priority. Size it to the
+ * connection limit: extra threads would only wait for a free connection.
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates a pool running at most the given number of requests at once.
+     * @param threads the number of worker threads
+     */
+    public PriorityThreadPoolExecutor(int threads) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "AsyncHttpClient #" + count.incrementAndGet());
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // the queue only holds comparable tasks
+        if(!(command instanceof PriorityTask)) {
+            command = new PriorityTask<Object>(command, null, priorityOf(command));
+        }
+        super.execute(command);
+    }
+
+    // submit is overridden instead of newTaskFor, which older Android
+    // versions don't have
+    @Override
+    public Future<?> submit(Runnable task) {
+        return submit(task, null);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        PriorityTask<T> future = new PriorityTask<T>(task, result, priorityOf(task));
+        execute(future);
+        return future;
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        PriorityTask<T> future = new PriorityTask<T>(task, AsyncHttpClient.PRIORITY_NORMAL);
+        execute(future);
+        return future;
+    }
+
+    private static int priorityOf(Runnable runnable) {
+        if(runnable instanceof AsyncHttpRequest) {
+            return ((AsyncHttpRequest) runnable).getPriority();
+        }
+        return AsyncHttpClient.PRIORITY_NORMAL;
+    }
+
+    private static class PriorityTask<T> extends FutureTask<T> implements Comparable<PriorityTask<?>> {
+        private final int priority;
+        private final long order = sequence.getAndIncrement();
+
+        PriorityTask(Runnable runnable, T value, int priority) {
+            super(runnable, value);
+            this.priority = priority;
+        }
+
+        PriorityTask(Callable<T> callable, int priority) {
+            super(callable);
+            this.priority = priority;
+        }
+
+        public int compareTo(PriorityTask<?> other) {
+            if(priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
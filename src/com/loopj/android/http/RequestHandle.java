@@ -0,0 +1,58 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+/**
+ * A handle to a request made with {@link AsyncHttpClient}, valid across
+ * retries. Cancelling it stops the request wherever it is: still queued,
+ * waiting for a retry, or in the middle of sending or receiving.
+ */
+public class RequestHandle {
+    private final AsyncHttpRequest request;
+
+    RequestHandle(AsyncHttpRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Cancels the request. No further callbacks are delivered to its
+     * response handler.
+     * @param mayInterruptIfRunning if true, an active request is aborted,
+     *        closing its connection; otherwise it is only kept from running
+     *        again.
+     * @return false if the request had already finished or been cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return request.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * @return true once the request has succeeded or failed for good
+     */
+    public boolean isFinished() {
+        return request.isFinished();
+    }
+
+    /**
+     * @return true if {@link #cancel(boolean)} was called before the request finished
+     */
+    public boolean isCancelled() {
+        return request.isCancelled();
+    }
+}
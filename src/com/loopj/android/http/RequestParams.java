@@ -20,7 +20,6 @@ package com.loopj.android.http;
 
 import java.io.InputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
 import java.util.LinkedList;
@@ -121,12 +120,29 @@ public class RequestParams {
     }
 
     /**
-     * Adds a file to the request.
+     * Adds a file to the request. The file is read when the request is
+     * sent, not when it is added.
      * @param key the key name for the new param.
      * @param file the file to add.
      */
     public void put(String key, File file) throws FileNotFoundException {
-        put(key, new FileInputStream(file), file.getName());
+        put(key, file, null);
+    }
+
+    /**
+     * Adds a file to the request. The file is read when the request is
+     * sent, not when it is added.
+     * @param key the key name for the new param.
+     * @param file the file to add.
+     * @param contentType the content type of the file, eg. image/jpeg
+     */
+    public void put(String key, File file, String contentType) throws FileNotFoundException {
+        if(!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        if(key != null) {
+            fileParams.put(key, new FileWrapper(file, contentType));
+        }
     }
 
     /**
@@ -208,20 +224,15 @@ public class RequestParams {
                 multipartEntity.addPart(entry.getKey(), entry.getValue());
             }
 
-            // Add file params
-            int currentIndex = 0;
-            int lastIndex = fileParams.entrySet().size() - 1;
+            // Add file params, they are only read when the entity is written
             for(ConcurrentHashMap.Entry<String, FileWrapper> entry : fileParams.entrySet()) {
                 FileWrapper file = entry.getValue();
-                if(file.inputStream != null) {
-                    boolean isLast = currentIndex == lastIndex;
-                    if(file.contentType != null) {
-                        multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, file.contentType, isLast);
-                    } else {
-                        multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, isLast);
-                    }
+                String contentType = file.contentType != null ? file.contentType : "application/octet-stream";
+                if(file.file != null) {
+                    multipartEntity.addPart(entry.getKey(), file.file, contentType, false);
+                } else if(file.inputStream != null) {
+                    multipartEntity.addPart(entry.getKey(), file.getFileName(), file.inputStream, contentType, false);
                 }
-                currentIndex++;
             }
 
             entity = multipartEntity;
@@ -256,10 +267,17 @@ public class RequestParams {
     }
 
     private static class FileWrapper {
+        public File file;
         public InputStream inputStream;
         public String fileName;
         public String contentType;
 
+        public FileWrapper(File file, String contentType) {
+            this.file = file;
+            this.fileName = file.getName();
+            this.contentType = contentType;
+        }
+
         public FileWrapper(InputStream inputStream, String fileName, String contentType) {
             this.inputStream = inputStream;
             this.fileName = fileName;
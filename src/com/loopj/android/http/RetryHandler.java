@@ -28,6 +28,7 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Random;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -37,10 +38,16 @@ import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.protocol.ExecutionContext;
 import org.apache.http.protocol.HttpContext;
 
-import android.os.SystemClock;
-
+/**
+ * Decides whether a failed request is retried and how long to wait before
+ * the next attempt. It never sleeps: {@link AsyncHttpRequest} schedules the
+ * retry on a timer so pool threads are not held while waiting.
+ */
 class RetryHandler implements HttpRequestRetryHandler {
-    private static final int RETRY_SLEEP_TIME_MILLIS = 1500;
+    private static final int RETRY_BASE_DELAY_MILLIS = 1000;
+    private static final int RETRY_MAX_DELAY_MILLIS = 15 * 1000;
+    private static final int RETRY_DEADLINE_MILLIS = 30 * 1000;
+    private static final Random random = new Random();
     private static HashSet<Class<?>> exceptionWhitelist = new HashSet<Class<?>>();
     private static HashSet<Class<?>> exceptionBlacklist = new HashSet<Class<?>>();
 
@@ -91,12 +98,34 @@ class RetryHandler implements HttpRequestRetryHandler {
             retry = !requestType.equals("POST");
         }
 
-        if(retry) {
-            SystemClock.sleep(RETRY_SLEEP_TIME_MILLIS);
-        } else {
+        if(!retry) {
             exception.printStackTrace();
         }
 
         return retry;
     }
+
+    /**
+     * Delay before the given attempt: exponential backoff from one second,
+     * capped at 15 seconds, with a random half so that requests that failed
+     * together don't all retry together.
+     * @param executionCount the number of attempts made so far
+     */
+    public long getRetryDelay(int executionCount) {
+        long delay = RETRY_MAX_DELAY_MILLIS;
+        if(executionCount <= 4) {
+            delay = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << (executionCount - 1));
+        }
+
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+
+    /**
+     * Total time, counted from the first attempt, after which a request is
+     * not retried anymore.
+     */
+    public long getRetryDeadline() {
+        return RETRY_DEADLINE_MILLIS;
+    }
 }
\ No newline at end of file
@@ -18,6 +18,8 @@
 
 package com.loopj.android.http;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.Serializable;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -71,4 +73,49 @@ public class SerializableCookie implements Serializable {
         clientCookie.setVersion(in.readInt());
         clientCookie.setSecure(in.readBoolean());
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the cookie in the compact format read by {@link #read(DataInputStream)}:
+     * length prefixed UTF-8 strings with a presence flag, expiry as a long
+     * (-1 for session cookies), version and secure flag. Unlike Java
+     * serialization it carries no class descriptors.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        Cookie cookie = getCookie();
+        out.writeUTF(cookie.getName());
+        writeNullable(out, cookie.getValue());
+        writeNullable(out, cookie.getComment());
+        writeNullable(out, cookie.getDomain());
+        writeNullable(out, cookie.getPath());
+        Date expiryDate = cookie.getExpiryDate();
+        out.writeLong(expiryDate != null ? expiryDate.getTime() : -1);
+        out.writeInt(cookie.getVersion());
+        out.writeBoolean(cookie.isSecure());
+    }
+
+    /**
+     * Reads a cookie written by {@link #write(DataOutputStream)}.
+     */
+    public static Cookie read(DataInputStream in) throws IOException {
+        BasicClientCookie clientCookie = new BasicClientCookie(in.readUTF(), readNullable(in));
+        clientCookie.setComment(readNullable(in));
+        clientCookie.setDomain(readNullable(in));
+        clientCookie.setPath(readNullable(in));
+        long expiry = in.readLong();
+        clientCookie.setExpiryDate(expiry != -1 ? new Date(expiry) : null);
+        clientCookie.setVersion(in.readInt());
+        clientCookie.setSecure(in.readBoolean());
+        return clientCookie;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if(value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -24,27 +24,40 @@
 package com.loopj.android.http;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
 
+/**
+ * A multipart/form-data entity that writes its parts when the request is
+ * sent instead of copying them into memory when they are added. Files and
+ * streams are copied to the connection through a small buffer, so uploads
+ * use the same memory whatever the size of the attachments.
+ * <p>
+ * The content length is known up front when every part has a known size
+ * (strings, bytes, files, and streams over files or byte arrays);
+ * otherwise the entity is sent chunked.
+ */
 class SimpleMultipartEntity implements HttpEntity {
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] CRLF = getBytes("\r\n");
 
-    private String boundary = null;
-
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final String boundary;
+    private final byte[] boundaryLine;
+    private final byte[] lastBoundaryLine;
+    private final List<Part> parts = new ArrayList<Part>();
 
     public SimpleMultipartEntity() {
         final StringBuffer buf = new StringBuffer();
@@ -53,89 +66,57 @@ class SimpleMultipartEntity implements HttpEntity {
             buf.append(MULTIPART_CHARS[rand.nextInt(MULTIPART_CHARS.length)]);
         }
         this.boundary = buf.toString();
-
-    }
-
-    public void writeFirstBoundaryIfNeeds(){
-        if(!isSetFirst){
-            try {
-                out.write(("--" + boundary + "\r\n").getBytes());
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        isSetFirst = true;
-    }
-
-    public void writeLastBoundaryIfNeeds() {
-        if(isSetLast){
-            return;
-        }
-
-        try {
-            out.write(("\r\n--" + boundary + "--\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
-
-        isSetLast = true;
+        this.boundaryLine = getBytes("--" + boundary + "\r\n");
+        this.lastBoundaryLine = getBytes("--" + boundary + "--\r\n");
     }
 
     public void addPart(final String key, final String value) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" +key+"\"\r\n\r\n").getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            e.printStackTrace();
-        }
+        String head = "Content-Disposition: form-data; name=\"" + key + "\"\r\n\r\n";
+        parts.add(new Part(getBytes(head), getBytes(value), null, null));
     }
 
+    /**
+     * Adds a stream part. The stream is read and closed when the entity is
+     * written. isLast is kept for compatibility, the closing boundary is
+     * always written after the last part.
+     */
     public void addPart(final String key, final String fileName, final InputStream fin, final boolean isLast){
         addPart(key, fileName, fin, "application/octet-stream", isLast);
     }
 
     public void addPart(final String key, final String fileName, final InputStream fin, String type, final boolean isLast){
-        writeFirstBoundaryIfNeeds();
-        try {
-            type = "Content-Type: "+type+"\r\n";
-            out.write(("Content-Disposition: form-data; name=\""+ key+"\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            if(!isLast)
-                out.write(("\r\n--" + boundary + "\r\n").getBytes());
-            out.flush();
-        } catch (final IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                e.printStackTrace();
-            }
-        }
+        parts.add(new Part(fileHead(key, fileName, type), null, null, fin));
     }
 
     public void addPart(final String key, final File value, final boolean isLast) {
-        try {
-            addPart(key, value.getName(), new FileInputStream(value), isLast);
-        } catch (final FileNotFoundException e) {
-            e.printStackTrace();
-        }
+        addPart(key, value, "application/octet-stream", isLast);
+    }
+
+    /**
+     * Adds a file part. The file is opened when the entity is written, so
+     * a file part can be sent again if the request is retried.
+     */
+    public void addPart(final String key, final File value, String type, final boolean isLast) {
+        parts.add(new Part(fileHead(key, value.getName(), type), null, value, null));
+    }
+
+    private byte[] fileHead(String key, String fileName, String type) {
+        return getBytes("Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"\r\n" +
+                "Content-Type: " + type + "\r\n" +
+                "Content-Transfer-Encoding: binary\r\n\r\n");
     }
 
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = 0;
+        for(Part part : parts) {
+            long partLength = part.getLength();
+            if(partLength < 0) {
+                return -1;
+            }
+            length += boundaryLine.length + partLength;
+        }
+        return length + lastBoundaryLine.length;
     }
 
     @Override
@@ -145,22 +126,33 @@ class SimpleMultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        for(Part part : parts) {
+            if(part.stream != null) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return !isRepeatable();
     }
 
     @Override
     public void writeTo(final OutputStream outstream) throws IOException {
-        outstream.write(out.toByteArray());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for(Part part : parts) {
+            outstream.write(boundaryLine);
+            part.writeTo(outstream, buffer);
+        }
+        outstream.write(lastBoundaryLine);
+        outstream.flush();
     }
 
     @Override
@@ -180,6 +172,87 @@ class SimpleMultipartEntity implements HttpEntity {
     @Override
     public InputStream getContent() throws IOException,
     UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        // Would mean buffering every part, which is what this entity avoids
+        throw new UnsupportedOperationException(
+        "Multipart entity does not implement #getContent()");
+    }
+
+    private static byte[] getBytes(String value) {
+        try {
+            return value.getBytes(CHARSET);
+        } catch(UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+
+    // A part is its headers, one body source and the line break before the next boundary
+    private static class Part {
+        final byte[] head;
+        final byte[] data;
+        final File file;
+        final InputStream stream;
+
+        Part(byte[] head, byte[] data, File file, InputStream stream) {
+            this.head = head;
+            this.data = data;
+            this.file = file;
+            this.stream = stream;
+        }
+
+        long getLength() {
+            long bodyLength;
+            if(data != null) {
+                bodyLength = data.length;
+            } else if(file != null) {
+                bodyLength = file.length();
+            } else {
+                bodyLength = getStreamLength(stream);
+            }
+            return bodyLength < 0 ? -1 : head.length + bodyLength + CRLF.length;
+        }
+
+        void writeTo(OutputStream out, byte[] buffer) throws IOException {
+            out.write(head);
+            if(data != null) {
+                out.write(data);
+            } else if(file != null) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    copy(in, out, buffer);
+                } finally {
+                    in.close();
+                }
+            } else {
+                try {
+                    copy(stream, out, buffer);
+                } finally {
+                    stream.close();
+                }
+            }
+            out.write(CRLF);
+        }
+
+        // The remaining bytes of streams whose size can be known without reading them, -1 otherwise
+        private static long getStreamLength(InputStream stream) {
+            try {
+                if(stream instanceof FileInputStream) {
+                    FileInputStream fileStream = (FileInputStream) stream;
+                    return fileStream.getChannel().size() - fileStream.getChannel().position();
+                }
+                if(stream instanceof ByteArrayInputStream) {
+                    return stream.available();
+                }
+            } catch(IOException e) {
+                // unknown, sent chunked
+            }
+            return -1;
+        }
+
+        private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+            int count;
+            while((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        }
     }
-}
\ No newline at end of file
+}
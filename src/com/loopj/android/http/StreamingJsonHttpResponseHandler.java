@@ -0,0 +1,267 @@
+/*
+    Android Asynchronous Http Client
+    Copyright (c) 2011 James Smith <james@loopj.com>
+    http://loopj.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.loopj.android.http;
+
+import android.os.Message;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.Executor;
+
+/**
+ * Used to intercept and handle the responses from requests made using
+ * {@link AsyncHttpClient}, parsing the body with a pull parser as it
+ * arrives instead of reading it into a String and building the whole tree.
+ * Parsing always happens on the request thread.
+ * <p>
+ * If the body is a json array, each element is parsed and handed to
+ * {@link #onItem(Object)} on its own, so only one element is in memory at a
+ * time. Any other body is delivered as a single item. Override
+ * {@link #readItem(JsonReader)} to build your own objects straight from the
+ * reader, or {@link #parse(JsonReader)} to walk a different document shape
+ * and {@link #publish(Object)} items from it.
+ * <p>
+ * Requires API level 11 ({@link JsonReader}).
+ * <p>
+ * For example:
+ * <p>
+ * <pre>
+ * client.get("http://www.example.com/feed.json", new StreamingJsonHttpResponseHandler&lt;Object&gt;() {
+ *     &#064;Override
+ *     public void onItem(Object item) {
+ *         // One element of the top level array, a JSONObject, JSONArray or value
+ *     }
+ *
+ *     &#064;Override
+ *     public void onComplete(int statusCode, int itemCount) {
+ *         // Every item has been delivered
+ *     }
+ * });
+ * </pre>
+ */
+public class StreamingJsonHttpResponseHandler<T> extends AsyncHttpResponseHandler {
+    protected static final int ITEM_MESSAGE = 200;
+    protected static final int COMPLETE_MESSAGE = 201;
+
+    private int itemCount;
+
+    /**
+     * Creates a new StreamingJsonHttpResponseHandler
+     */
+    public StreamingJsonHttpResponseHandler() {
+        super();
+    }
+
+    /**
+     * Creates a new StreamingJsonHttpResponseHandler that delivers its
+     * callbacks through the passed executor.
+     * @param deliveryExecutor for example {@link #MAIN}, {@link #BACKGROUND} or {@link #DIRECT}
+     */
+    public StreamingJsonHttpResponseHandler(Executor deliveryExecutor) {
+        super(deliveryExecutor);
+    }
+
+
+    //
+    // Callbacks to be overridden, typically anonymously
+    //
+
+    /**
+     * Fired for every parsed item, override to handle in your own code
+     * @param item the item built by {@link #readItem(JsonReader)}
+     */
+    public void onItem(T item) {}
+
+    /**
+     * Fired once the whole body has been parsed and every item delivered,
+     * override to handle in your own code
+     * @param statusCode the status code of the response
+     * @param itemCount the number of items delivered
+     */
+    public void onComplete(int statusCode, int itemCount) {}
+
+
+    //
+    // Parsing (executes in background threadpool thread)
+    //
+
+    /**
+     * Walks the document and publishes its items. By default the elements
+     * of a top level array are items, otherwise the whole document is.
+     */
+    protected void parse(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while(reader.hasNext()) {
+                if(isCancelled()) {
+                    return;
+                }
+                publish(readItem(reader));
+            }
+            reader.endArray();
+        } else {
+            publish(readItem(reader));
+        }
+    }
+
+    /**
+     * Reads one item. By default builds the same objects as
+     * {@link JsonHttpResponseHandler}: JSONObject, JSONArray, String, Integer,
+     * Long, Double, Boolean or JSONObject.NULL.
+     */
+    @SuppressWarnings("unchecked")
+    protected T readItem(JsonReader reader) throws IOException {
+        return (T) readValue(reader);
+    }
+
+    /**
+     * Hands an item to {@link #onItem(Object)}.
+     */
+    protected final void publish(T item) {
+        itemCount++;
+        sendMessage(obtainMessage(ITEM_MESSAGE, item));
+    }
+
+    /**
+     * Reads the next value from reader as a JSONObject, JSONArray or plain value.
+     */
+    public static Object readValue(JsonReader reader) throws IOException {
+        switch(reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    try {
+                        object.put(name, readValue(reader));
+                    } catch(JSONException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while(reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static Object parseNumber(String number) {
+        try {
+            long value = Long.parseLong(number);
+            if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                return (int) value;
+            }
+            return value;
+        } catch(NumberFormatException e) {
+            return Double.valueOf(number);
+        }
+    }
+
+
+    //
+    // Pre-processing of messages (in original calling thread, typically the UI thread)
+    //
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void handleMessage(Message msg) {
+        switch(msg.what) {
+            case ITEM_MESSAGE:
+                onItem((T) msg.obj);
+                break;
+            case COMPLETE_MESSAGE:
+                int[] result = (int[]) msg.obj;
+                onComplete(result[0], result[1]);
+                break;
+            default:
+                super.handleMessage(msg);
+                break;
+        }
+    }
+
+    // Interface to AsyncHttpRequest
+    void sendResponseMessage(HttpResponse response) {
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+
+        if(status.getStatusCode() >= 300) {
+            String responseBody = null;
+            try {
+                responseBody = entity != null ? EntityUtils.toString(entity, "UTF-8") : null;
+            } catch(IOException e) {
+                // report the status anyway
+            }
+            sendFailureMessage(new HttpResponseException(status.getStatusCode(), status.getReasonPhrase()), responseBody);
+            return;
+        }
+
+        itemCount = 0;
+        if(entity != null) {
+            String charset = EntityUtils.getContentCharSet(entity);
+            Reader reader = null;
+            try {
+                reader = new InputStreamReader(entity.getContent(), charset != null ? charset : "UTF-8");
+                parse(new JsonReader(reader));
+            } catch(IOException e) {
+                sendFailureMessage(e, (String) null);
+                return;
+            } catch(IllegalStateException e) {
+                // JsonReader throws it when the document isn't shaped as expected
+                sendFailureMessage(e, (String) null);
+                return;
+            } finally {
+                if(reader != null) {
+                    try {
+                        reader.close();
+                    } catch(IOException e) {
+                        // nothing left to do
+                    }
+                }
+            }
+        }
+
+        sendMessage(obtainMessage(COMPLETE_MESSAGE, new int[]{status.getStatusCode(), itemCount}));
+    }
+}